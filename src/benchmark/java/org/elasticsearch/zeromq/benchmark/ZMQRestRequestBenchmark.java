@@ -0,0 +1,111 @@
+/*
+ * Licensed to Elastic Search and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Elastic Search licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.zeromq.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.Unicode;
+import org.elasticsearch.zeromq.ZMQRestRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Throughput of the parsing of the requests received from ØMQ clients, for
+ * both protocols and for content sizes from 100 bytes to 10 Mb. Run it with
+ * <code>-prof gc</code> to get the allocation rate (the content is never
+ * copied, so it should not depend on the size).
+ *
+ * @author tlrx
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ZMQRestRequestBenchmark {
+
+	private static final String URI = "/twitter/tweet/_search?q=user:kimchy&size=20&from=40&routing=a%2Cb&pretty=true";
+
+	@Param({ "100", "10000", "1000000", "10000000" })
+	public int size;
+
+	private byte[] v1;
+
+	private List<byte[]> v1Content;
+
+	private List<byte[]> v2Content;
+
+	private ZMQRestRequest request;
+
+	@Setup
+	public void setUp() {
+		byte[] body = new byte[size];
+		Arrays.fill(body, (byte) 'a');
+
+		byte[] line = Unicode.fromStringAsBytes("POST|" + URI + "|");
+		v1 = new byte[line.length + size];
+		System.arraycopy(line, 0, v1, 0, line.length);
+		System.arraycopy(body, 0, v1, line.length, size);
+		v1Content = Collections.singletonList(v1);
+
+		v2Content = new ArrayList<byte[]>();
+		v2Content.add(Unicode.fromStringAsBytes("POST"));
+		v2Content.add(Unicode.fromStringAsBytes(URI));
+		v2Content.add(Unicode.fromStringAsBytes("Content-Type: application/json\nX-Timeout: 5s"));
+		v2Content.add(body);
+
+		request = new ZMQRestRequest(v1, v1Content);
+	}
+
+	@Benchmark
+	public ZMQRestRequest parseV1() {
+		return ZMQRestRequest.parse(v1Content, v1Content);
+	}
+
+	@Benchmark
+	public ZMQRestRequest parseV2() {
+		return ZMQRestRequest.parse(v2Content, v2Content);
+	}
+
+	/**
+	 * Parsing followed by the decoding of the query string, as done by the
+	 * REST actions when they read their parameters
+	 */
+	@Benchmark
+	public Map<String, String> params() {
+		return ZMQRestRequest.parse(v1Content, v1Content).params();
+	}
+
+	/**
+	 * Access to already decoded parameters
+	 */
+	@Benchmark
+	public String param() {
+		return request.param("routing");
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed to Elastic Search and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Elastic Search licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.zeromq.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.zeromq.ZMQProtocol;
+import org.elasticsearch.zeromq.ZMQRestResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Throughput of the assembly of the reply frames, for both protocols and for
+ * content sizes from 100 bytes to 10 Mb. Run it with <code>-prof gc</code> to
+ * get the allocation rate: the protocol V1 payload copies the content once,
+ * the protocol V2 frames copy it only if it is not thread safe.
+ *
+ * @author tlrx
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ZMQRestResponseBenchmark {
+
+	@Param({ "100", "10000", "1000000", "10000000" })
+	public int size;
+
+	private byte[] content;
+
+	@Setup
+	public void setUp() {
+		content = new byte[size];
+		Arrays.fill(content, (byte) 'a');
+	}
+
+	/**
+	 * A new response for each invocation, since the frames are cached by the
+	 * response
+	 */
+	private ZMQRestResponse response(boolean threadSafe) {
+		ZMQRestResponse response = new ZMQRestResponse(RestStatus.OK);
+		response.setBody(ByteBuffer.wrap(content));
+		response.setContentThreadSafe(threadSafe);
+		return response;
+	}
+
+	@Benchmark
+	public byte[] payload() {
+		return response(false).payload();
+	}
+
+	@Benchmark
+	public byte[][] framesV1() {
+		return response(false).frames(ZMQProtocol.V1);
+	}
+
+	@Benchmark
+	public byte[][] framesV2() {
+		return response(false).frames(ZMQProtocol.V2);
+	}
+
+	@Benchmark
+	public byte[][] framesV2ThreadSafe() {
+		return response(true).frames(ZMQProtocol.V2);
+	}
+}
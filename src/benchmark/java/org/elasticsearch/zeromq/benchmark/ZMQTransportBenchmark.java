@@ -0,0 +1,201 @@
+/*
+ * Licensed to Elastic Search and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Elastic Search licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.zeromq.benchmark;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.Unicode;
+import org.elasticsearch.common.network.NetworkService;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.AbstractRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.zeromq.ZMQRestImpl;
+import org.elasticsearch.zeromq.ZMQServerTransport;
+import org.elasticsearch.zeromq.impl.ZMQQueueServerImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.zeromq.ZMQ;
+
+/**
+ * End to end benchmark of the transport without Elasticsearch: the server is
+ * started in the JVM with a {@link RestController} that replies a canned
+ * response to every request, so that the router, the broker, the workers and
+ * {@link ZMQRestImpl} are measured alone.
+ * <p>
+ * Clients connect to the router over the loopback interface, the workers are
+ * connected to the broker with inproc endpoints. Each JMH thread is a DEALER
+ * client that sends a request and waits for its reply, run it with
+ * <code>-t</code> to set the number of clients. The throughput is the
+ * ceiling of the transport in messages per second, the sample time is the
+ * latency it adds to the requests.
+ *
+ * @author tlrx
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ZMQTransportBenchmark {
+
+	private static final String ADDRESS = "tcp://127.0.0.1:9799";
+
+	/**
+	 * The server, shared by all the clients
+	 */
+	@State(Scope.Benchmark)
+	public static class Server {
+
+		@Param({ "100", "10000", "1000000" })
+		public int responseSize;
+
+		@Param({ "3" })
+		public int workers;
+
+		@Param({ "false", "true" })
+		public boolean async;
+
+		private ZMQQueueServerImpl server;
+
+		@Setup(Level.Trial)
+		public void start() {
+			Settings settings = ImmutableSettings.settingsBuilder()
+					.put("name", "zeromq_benchmark")
+					.put("zeromq.router.bind", ADDRESS)
+					.put("zeromq.workers.bind", "inproc://es_zeromq_benchmark")
+					.put("zeromq.workers.threads", workers)
+					.put("zeromq.workers.async", async)
+					.put("zeromq.stats.jmx", false)
+					.build();
+
+			byte[] content = new byte[responseSize];
+			Arrays.fill(content, (byte) 'a');
+
+			ZMQRestImpl client = new ZMQRestImpl(settings, new CannedRestController(settings, content));
+
+			// No node: the transport does not publish its address
+			server = new ZMQQueueServerImpl(settings, null, client, new NetworkService(settings), null) {
+			};
+			server.start();
+		}
+
+		@TearDown(Level.Trial)
+		public void stop() {
+			server.close();
+		}
+	}
+
+	/**
+	 * A client, one per thread
+	 */
+	@State(Scope.Thread)
+	public static class Client {
+
+		private ZMQ.Context context;
+
+		private ZMQ.Socket socket;
+
+		private byte[] request;
+
+		@Setup(Level.Trial)
+		public void connect(Server server) {
+			context = ZMQ.context(1);
+			socket = context.socket(ZMQ.DEALER);
+			socket.setLinger(0);
+			socket.connect(ADDRESS);
+
+			request = Unicode.fromStringAsBytes("GET|/twitter/tweet/1|");
+		}
+
+		@TearDown(Level.Trial)
+		public void close() {
+			socket.close();
+			context.term();
+		}
+	}
+
+	@Benchmark
+	public byte[] request(Client client) {
+		client.socket.send(client.request, 0);
+		return client.socket.recv(0);
+	}
+
+	/**
+	 * Replies the same content to every request
+	 */
+	static class CannedRestController extends RestController {
+
+		private final byte[] content;
+
+		CannedRestController(Settings settings, byte[] content) {
+			super(settings);
+			this.content = content;
+		}
+
+		@Override
+		public void dispatchRequest(RestRequest request, RestChannel channel) {
+			channel.sendResponse(new CannedRestResponse(content));
+		}
+	}
+
+	static class CannedRestResponse extends AbstractRestResponse {
+
+		private final byte[] content;
+
+		CannedRestResponse(byte[] content) {
+			this.content = content;
+		}
+
+		@Override
+		public boolean contentThreadSafe() {
+			return true;
+		}
+
+		@Override
+		public String contentType() {
+			return "application/json; charset=UTF-8";
+		}
+
+		@Override
+		public byte[] content() throws IOException {
+			return content;
+		}
+
+		@Override
+		public int contentLength() throws IOException {
+			return content.length;
+		}
+
+		@Override
+		public RestStatus status() {
+			return RestStatus.OK;
+		}
+	}
+}
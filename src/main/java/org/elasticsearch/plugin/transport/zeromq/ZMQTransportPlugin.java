@@ -27,8 +27,10 @@ import org.elasticsearch.common.component.LifecycleComponent;
 import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.plugins.AbstractPlugin;
+import org.elasticsearch.rest.RestModule;
 import org.elasticsearch.zeromq.ZMQServer;
 import org.elasticsearch.zeromq.ZMQServerModule;
+import org.elasticsearch.zeromq.ZMQStatsRestAction;
 
 /**
  * @author tlrx
@@ -64,4 +66,10 @@ public class ZMQTransportPlugin extends AbstractPlugin {
         }
         return services;
     }
+
+    public void onModule(RestModule module) {
+        if (settings.getAsBoolean("zeromq.enabled", true)) {
+            module.addRestAction(ZMQStatsRestAction.class);
+        }
+    }
 }
@@ -0,0 +1,164 @@
+/*
+ * Licensed to Elastic Search and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Elastic Search licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.zeromq;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * Limits the number of requests processed by ES at the same time, globally
+ * and for each {@link ZMQLane}. Requests over the limits are not dispatched
+ * to ES: they are answered with a precomputed 429 reply, so that clients can
+ * back off or fail over immediately.
+ * <p>
+ * This class is shared by all the workers and is thread safe.
+ *
+ * @author tlrx
+ */
+public class ZMQAdmissionControl {
+
+	final int maxInflight;
+
+	/**
+	 * Maximum number of requests of each lane, indexed by lane ID (0 for
+	 * unlimited)
+	 */
+	final int[] laneMaxInflight;
+
+	/**
+	 * True if at least one lane has a limit, requests must then be classified
+	 */
+	private final boolean limitLanes;
+
+	private final AtomicInteger inflight = new AtomicInteger();
+
+	private final AtomicInteger[] laneInflight;
+
+	private final CounterMetric rejected = new CounterMetric();
+
+	private final CounterMetric expired = new CounterMetric();
+
+	/**
+	 * Rejection reply frames, indexed by protocol version
+	 */
+	private final byte[][][] rejections;
+
+	public ZMQAdmissionControl(ESLogger logger, Settings settings) {
+		this.maxInflight = settings.getAsInt("zeromq.admission.max_inflight", 0);
+
+		ZMQLane[] lanes = ZMQLane.values();
+		this.laneMaxInflight = new int[lanes.length];
+		this.laneInflight = new AtomicInteger[lanes.length];
+		boolean limited = false;
+		for (ZMQLane lane : lanes) {
+			laneMaxInflight[lane.ordinal()] = settings.getAsInt("zeromq.lanes." + lane.lowercase() + ".max_inflight", 0);
+			laneInflight[lane.ordinal()] = new AtomicInteger();
+			limited |= (laneMaxInflight[lane.ordinal()] > 0);
+		}
+		this.limitLanes = limited;
+
+		this.rejections = new byte[ZMQProtocol.V2 + 1][][];
+		this.rejections[ZMQProtocol.V1] = ZMQProtocol.errorFrames(ZMQProtocol.V1, ZMQProtocol.TOO_MANY_REQUESTS, ZMQProtocol.TOO_MANY_REQUESTS_REASON,
+				"Too many requests in progress");
+		this.rejections[ZMQProtocol.V2] = ZMQProtocol.errorFrames(ZMQProtocol.V2, ZMQProtocol.TOO_MANY_REQUESTS, ZMQProtocol.TOO_MANY_REQUESTS_REASON,
+				"Too many requests in progress");
+
+		logger.debug("ØMQ admission control [zeromq.admission.max_inflight={}, lanes={}]", maxInflight, limitLanes);
+	}
+
+	/**
+	 * Acquires a permit to dispatch the request to ES
+	 *
+	 * @return the lane of the permit, to give back to {@link #release(ZMQLane)},
+	 *         or null if the request must be rejected
+	 */
+	public ZMQLane acquire(ZMQRestRequest request) {
+		int count = inflight.incrementAndGet();
+		if ((maxInflight > 0) && (count > maxInflight)) {
+			inflight.decrementAndGet();
+			rejected.inc();
+			return null;
+		}
+
+		if (!limitLanes) {
+			return ZMQLane.DEFAULT;
+		}
+
+		ZMQLane lane = ZMQLane.classify(request.method().name(), request.rawPath());
+		int max = laneMaxInflight[lane.ordinal()];
+		if ((max > 0) && (laneInflight[lane.ordinal()].incrementAndGet() > max)) {
+			laneInflight[lane.ordinal()].decrementAndGet();
+			inflight.decrementAndGet();
+			rejected.inc();
+			return null;
+		}
+		return lane;
+	}
+
+	/**
+	 * Gives back a permit once the response has been received
+	 */
+	public void release(ZMQLane lane) {
+		if (limitLanes && (laneMaxInflight[lane.ordinal()] > 0)) {
+			laneInflight[lane.ordinal()].decrementAndGet();
+		}
+		inflight.decrementAndGet();
+	}
+
+	/**
+	 * @return the reply frames of a rejected request. The returned arrays are
+	 *         shared and must not be modified.
+	 */
+	public byte[][] rejection(int protocol) {
+		return rejections[(protocol == ZMQProtocol.V2) ? ZMQProtocol.V2 : ZMQProtocol.V1];
+	}
+
+	/**
+	 * @return the number of requests being processed by ES
+	 */
+	public int inflight() {
+		return inflight.get();
+	}
+
+	/**
+	 * @return the number of rejected requests
+	 */
+	public long rejected() {
+		return rejected.count();
+	}
+
+	/**
+	 * Counts a request or a reply dropped because its deadline was passed
+	 */
+	public void expire() {
+		expired.inc();
+	}
+
+	/**
+	 * @return the number of requests and replies dropped by the workers
+	 *         because their deadline was passed
+	 */
+	public long expired() {
+		return expired.count();
+	}
+}
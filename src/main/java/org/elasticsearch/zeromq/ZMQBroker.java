@@ -0,0 +1,715 @@
+/*
+ * Licensed to Elastic Search and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Elastic Search licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.zeromq;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.RestStatus;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQException;
+
+/**
+ * Least recently used broker between the clients (frontend ROUTER socket) and
+ * the workers (backend ROUTER socket).
+ * <p>
+ * Workers connect with a DEALER socket and send a {@link #READY} frame each
+ * time they can accept a new request; a request is only handed to a ready
+ * worker, the least recently used one first. Replies are sent by the workers
+ * as a {@link #REPLY} frame followed by the envelope and the reply frames.
+ * <p>
+ * Requests received while no worker is ready wait in a bounded queue; when
+ * the queue is full the frontend socket is not read anymore, so clients are
+ * throttled by the ØMQ high water marks.
+ * <p>
+ * When workers are started for several {@link ZMQLane}s, each request is
+ * classified and handed to a worker of its lane (or of the default lane if
+ * its lane has no worker). Each lane has its own queue, requests are rejected
+ * with a 503 status when it is full.
+ * <p>
+ * Within a lane, requests are scheduled fairly between the clients (see
+ * {@link ZMQFairQueue}); the requests of a client over its rate limit are
+ * rejected with a 429 status (see {@link ZMQClientPolicy}).
+ * <p>
+ * Requests are handed to the workers with a {@link #REQUEST} frame that
+ * carries their reception time and their deadline, if any (see
+ * {@link ZMQProtocol#deadline(List, long)}). Requests whose deadline is passed
+ * when a worker is ready are dropped.
+ * <p>
+ * The number of workers of a lane grows up to its maximum when requests are
+ * waiting, and shrinks down to its minimum when the workers have been mostly
+ * idle for the keep alive time: the broker starts the workers with its
+ * {@link WorkerFactory} and retires them with a {@link #STOP} frame.
+ *
+ * @author tlrx
+ */
+public class ZMQBroker implements Runnable {
+
+	/**
+	 * Worker to broker: the worker can accept a request. The second byte, if
+	 * any, is the ID of the worker's lane.
+	 */
+	public static final byte[] READY = { 1 };
+
+	/**
+	 * Worker to broker: the following frames are a reply to send to the
+	 * frontend
+	 */
+	public static final byte[] REPLY = { 2 };
+
+	/**
+	 * Broker to worker: the worker must stop
+	 */
+	public static final byte[] STOP = { 3 };
+
+	/**
+	 * Broker to worker: the following frames are a request. The next 8 bytes
+	 * are the reception time of the request, the last 8 bytes its deadline (0
+	 * if none), both comparable to {@link System#nanoTime()}.
+	 */
+	public static final byte[] REQUEST = { 4 };
+
+	/**
+	 * Workers are retired when they are busy less than this ratio of the time
+	 */
+	private static final double SCALE_DOWN_UTILIZATION = 0.5;
+
+	/**
+	 * Starts the workers of a broker
+	 */
+	public interface WorkerFactory {
+
+		/**
+		 * Starts a worker for the given lane, which connects to the backend
+		 * socket of the broker
+		 */
+		void startWorker(ZMQLane lane);
+
+		/**
+		 * @return the number of started workers that are not closed yet
+		 */
+		int openWorkers();
+	}
+
+	private final ESLogger logger;
+
+	private final ZMQ.Context context;
+
+	private final ZMQ.Socket frontend;
+
+	private final ZMQ.Socket backend;
+
+	private final WorkerFactory workerFactory;
+
+	private final AtomicBoolean isRunning;
+
+	private final ZMQClientPolicy clients;
+
+	final int queueSize;
+
+	final TimeValue keepAlive;
+
+	final TimeValue scaleInterval;
+
+	/**
+	 * Lanes indexed by ID, null when the lane has no worker
+	 */
+	private final Lane[] lanes;
+
+	/**
+	 * True if requests must be classified (workers exist for several lanes)
+	 */
+	private final boolean classify;
+
+	/**
+	 * True if the number of workers of at least one lane can change
+	 */
+	private final boolean elastic;
+
+	/**
+	 * Number of requests waiting in all the lanes
+	 */
+	private int pending = 0;
+
+	private volatile int queueDepth = 0;
+
+	private volatile int peakQueueDepth = 0;
+
+	private volatile int readyWorkers = 0;
+
+	private final CounterMetric rejected = new CounterMetric();
+
+	private final CounterMetric routed = new CounterMetric();
+
+	private final CounterMetric throttled = new CounterMetric();
+
+	private final CounterMetric expired = new CounterMetric();
+
+	private final CountDownLatch waitForClose = new CountDownLatch(1);
+
+	/**
+	 * Reply frames of the requests rejected because their lane is full,
+	 * indexed by protocol version
+	 */
+	private final byte[][][] rejections;
+
+	/**
+	 * Reply frames of the requests rejected because their client exceeds its
+	 * rate limit, indexed by protocol version
+	 */
+	private final byte[][][] throttles;
+
+	public ZMQBroker(ESLogger logger, Settings settings, ZMQ.Context context, ZMQ.Socket frontend, ZMQ.Socket backend, WorkerFactory workerFactory,
+			AtomicBoolean isRunning) {
+		this.logger = logger;
+		this.context = context;
+		this.frontend = frontend;
+		this.backend = backend;
+		this.workerFactory = workerFactory;
+		this.isRunning = isRunning;
+		this.clients = new ZMQClientPolicy(logger, settings);
+
+		this.queueSize = settings.getAsInt("zeromq.broker.queue_size", 1000);
+		this.keepAlive = settings.getAsTime("zeromq.workers.keep_alive", TimeValue.timeValueMinutes(1));
+		this.scaleInterval = settings.getAsTime("zeromq.workers.scale_interval", TimeValue.timeValueMillis(500));
+
+		// The default lane handles the requests of the lanes without worker
+		this.lanes = new Lane[ZMQLane.values().length];
+		int count = 0;
+		boolean resizable = false;
+		for (ZMQLane lane : ZMQLane.values()) {
+			int min;
+			int max;
+			if (lane == ZMQLane.DEFAULT) {
+				min = Math.max(1, settings.getAsInt("zeromq.workers.threads", 3));
+				max = Math.max(min, settings.getAsInt("zeromq.workers.max_threads", min));
+			} else {
+				String prefix = "zeromq.lanes." + lane.lowercase() + ".";
+				min = settings.getAsInt(prefix + "threads", 0);
+				max = Math.max(min, settings.getAsInt(prefix + "max_threads", min));
+			}
+			if (max > 0) {
+				int size = settings.getAsInt("zeromq.lanes." + lane.lowercase() + ".queue_size", queueSize);
+				lanes[lane.ordinal()] = new Lane(lane, min, max, size, clients);
+				resizable |= (max > min);
+				count++;
+
+				logger.debug("ØMQ lane {} [threads={}, max_threads={}, queue_size={}]", lane.lowercase(), min, max, size);
+			}
+		}
+		this.classify = (count > 1);
+		this.elastic = resizable;
+
+		this.rejections = new byte[ZMQProtocol.V2 + 1][][];
+		this.rejections[ZMQProtocol.V1] = ZMQProtocol.errorFrames(ZMQProtocol.V1, RestStatus.SERVICE_UNAVAILABLE, "Too many pending requests");
+		this.rejections[ZMQProtocol.V2] = ZMQProtocol.errorFrames(ZMQProtocol.V2, RestStatus.SERVICE_UNAVAILABLE, "Too many pending requests");
+
+		this.throttles = new byte[ZMQProtocol.V2 + 1][][];
+		this.throttles[ZMQProtocol.V1] = ZMQProtocol.errorFrames(ZMQProtocol.V1, ZMQProtocol.TOO_MANY_REQUESTS, ZMQProtocol.TOO_MANY_REQUESTS_REASON,
+				"Rate limit exceeded");
+		this.throttles[ZMQProtocol.V2] = ZMQProtocol.errorFrames(ZMQProtocol.V2, ZMQProtocol.TOO_MANY_REQUESTS, ZMQProtocol.TOO_MANY_REQUESTS_REASON,
+				"Rate limit exceeded");
+	}
+
+	@Override
+	public void run() {
+
+		for (Lane lane : lanes) {
+			if (lane != null) {
+				for (int i = 0; i < lane.min; i++) {
+					startWorker(lane);
+				}
+			}
+		}
+
+		// The frontend socket is only polled when the queue is not full
+		ZMQ.Poller all = context.poller(2);
+		all.register(backend, ZMQ.Poller.POLLIN);
+		all.register(frontend, ZMQ.Poller.POLLIN);
+
+		ZMQ.Poller backendOnly = context.poller(1);
+		backendOnly.register(backend, ZMQ.Poller.POLLIN);
+
+		long pollTimeout = ZMQSocket.pollTimeout(Math.min(100, Math.max(1, scaleInterval.millis())));
+		long nextScale = System.nanoTime() + scaleInterval.nanos();
+
+		logger.debug("ØMQ broker started (queue size {})", queueSize);
+
+		while (isRunning.get()) {
+			try {
+				ZMQ.Poller poller = (pending < queueSize) ? all : backendOnly;
+				poller.poll(pollTimeout);
+
+				if (poller.pollin(0)) {
+					receiveFromWorkers();
+				}
+				if ((poller == all) && poller.pollin(1)) {
+					receiveFromClients();
+				}
+				route();
+
+				if (elastic && (System.nanoTime() - nextScale >= 0)) {
+					scale();
+					nextScale = System.nanoTime() + scaleInterval.nanos();
+				}
+
+			} catch (ZMQException zmqe) {
+				if (logger.isWarnEnabled()) {
+					logger.warn("Exception in ØMQ broker", zmqe);
+				}
+			}
+		}
+
+		stopWorkers();
+
+		try {
+			frontend.close();
+			backend.close();
+			logger.info("ØMQ broker is closed");
+
+		} catch (Exception e) {
+			logger.error("Exception when closing ØMQ broker", e);
+		}
+		waitForClose.countDown();
+	}
+
+	/**
+	 * Waits for the broker to stop the workers and close its sockets
+	 */
+	public boolean awaitClose(long timeout, TimeUnit unit) throws InterruptedException {
+		return waitForClose.await(timeout, unit);
+	}
+
+	/**
+	 * @return the number of requests waiting for a ready worker
+	 */
+	public int queueDepth() {
+		return queueDepth;
+	}
+
+	/**
+	 * @return the highest number of requests that waited for a ready worker
+	 */
+	public int peakQueueDepth() {
+		return peakQueueDepth;
+	}
+
+	/**
+	 * @return the number of requests of the given lane waiting for a ready
+	 *         worker
+	 */
+	public int queueDepth(ZMQLane lane) {
+		Lane l = lanes[lane.ordinal()];
+		return (l != null) ? l.queueDepth : 0;
+	}
+
+	/**
+	 * @return the number of running workers of the given lane
+	 */
+	public int workers(ZMQLane lane) {
+		Lane l = lanes[lane.ordinal()];
+		return (l != null) ? l.size : 0;
+	}
+
+	/**
+	 * @return the number of workers waiting for a request
+	 */
+	public int readyWorkers() {
+		return readyWorkers;
+	}
+
+	/**
+	 * @return the number of requests handed to the workers
+	 */
+	public long routed() {
+		return routed.count();
+	}
+
+	/**
+	 * @return the number of requests rejected because their lane was full
+	 */
+	public long rejected() {
+		return rejected.count();
+	}
+
+	/**
+	 * @return the number of requests rejected because their client exceeded
+	 *         its rate limit
+	 */
+	public long throttled() {
+		return throttled.count();
+	}
+
+	/**
+	 * @return the number of requests dropped because their deadline was
+	 *         passed before a worker was ready
+	 */
+	public long expired() {
+		return expired.count();
+	}
+
+	private void receiveFromWorkers() {
+		List<byte[]> message;
+		while ((message = receive(backend)) != null) {
+			if (message.size() < 2) {
+				continue;
+			}
+			byte[] kind = message.get(1);
+
+			if (kind[0] == READY[0]) {
+				Lane lane = lane((kind.length > 1) ? kind[1] : 0);
+				lane.account(System.nanoTime());
+				lane.workers.addLast(message.get(0));
+
+			} else if (kind[0] == REPLY[0]) {
+				send(frontend, message.subList(2, message.size()));
+			}
+		}
+	}
+
+	private void receiveFromClients() {
+		List<byte[]> message;
+		while ((pending < queueSize) && ((message = receive(frontend)) != null)) {
+			long now = System.nanoTime();
+			if (!clients.admit(message.get(0), now)) {
+				throttled.inc();
+				reject(message, throttles);
+				continue;
+			}
+			Lane lane = classify ? lane(ZMQLane.classify(message).ordinal()) : lanes[0];
+
+			if (lane.pending.size() >= lane.queueSize) {
+				rejected.inc();
+				reject(message, rejections);
+				continue;
+			}
+			long deadline = ZMQProtocol.deadline(message, now);
+			message.add(0, requestFrame(now, deadline));
+			lane.pending.add(message.get(1), message);
+			pending++;
+		}
+		if (pending > peakQueueDepth) {
+			peakQueueDepth = pending;
+		}
+	}
+
+	/**
+	 * Replies to a rejected request with the precomputed reply of its
+	 * protocol version
+	 */
+	private void reject(List<byte[]> message, byte[][][] replies) {
+		int contentStart = ZMQProtocol.contentStart(message);
+		int protocol = ZMQProtocol.replyVersion(message, contentStart);
+
+		for (int i = 0; i < contentStart; i++) {
+			frontend.send(message.get(i), ZMQ.SNDMORE);
+		}
+		byte[][] reply = replies[protocol];
+		for (int i = 0; i < reply.length; i++) {
+			frontend.send(reply[i], (i < reply.length - 1) ? ZMQ.SNDMORE : 0);
+		}
+	}
+
+	/**
+	 * Hands the pending requests to the least recently used ready workers of
+	 * their lane
+	 */
+	private void route() {
+		int ready = 0;
+		for (Lane lane : lanes) {
+			if (lane == null) {
+				continue;
+			}
+			if (!lane.workers.isEmpty() && !lane.pending.isEmpty()) {
+				long now = System.nanoTime();
+				lane.account(now);
+
+				while (!lane.workers.isEmpty() && !lane.pending.isEmpty()) {
+					List<byte[]> message = lane.pending.poll();
+					pending--;
+
+					if (isExpired(message.get(0), now)) {
+						expired.inc();
+						continue;
+					}
+					backend.send(lane.workers.removeFirst(), ZMQ.SNDMORE);
+					send(backend, message);
+					routed.inc();
+				}
+			}
+			lane.queueDepth = lane.pending.size();
+			ready += lane.workers.size();
+		}
+		queueDepth = pending;
+		readyWorkers = ready;
+	}
+
+	/**
+	 * Starts workers for the lanes with waiting requests, and retires a ready
+	 * worker of the lanes that have been mostly idle for the keep alive time
+	 */
+	private void scale() {
+		long now = System.nanoTime();
+
+		for (Lane lane : lanes) {
+			if ((lane == null) || (lane.max == lane.min)) {
+				continue;
+			}
+			double utilization = lane.utilization(now);
+
+			if (!lane.pending.isEmpty()) {
+				lane.idleSince = 0;
+				int count = Math.min(lane.max - lane.size, lane.pending.size());
+				for (int i = 0; i < count; i++) {
+					startWorker(lane);
+				}
+				if ((count > 0) && logger.isDebugEnabled()) {
+					logger.debug("ØMQ lane {} grows to {} workers ({} pending requests)", lane.lane.lowercase(), lane.size, lane.pending.size());
+				}
+
+			} else if ((utilization < SCALE_DOWN_UTILIZATION) && (lane.size > lane.min)) {
+				if (lane.idleSince == 0) {
+					lane.idleSince = now;
+
+				} else if ((now - lane.idleSince >= keepAlive.nanos()) && !lane.workers.isEmpty()) {
+					// Retires the most recently used worker, one per interval
+					lane.account(now);
+					backend.send(lane.workers.removeLast(), ZMQ.SNDMORE);
+					backend.send(STOP, 0);
+					lane.size--;
+
+					if (logger.isDebugEnabled()) {
+						logger.debug("ØMQ lane {} shrinks to {} workers", lane.lane.lowercase(), lane.size);
+					}
+				}
+
+			} else {
+				lane.idleSince = 0;
+			}
+		}
+	}
+
+	private void startWorker(Lane lane) {
+		lane.account(System.nanoTime());
+		lane.size++;
+		workerFactory.startWorker(lane.lane);
+	}
+
+	/**
+	 * @return the lane with the given ID, or the default lane if it has no
+	 *         worker
+	 */
+	private Lane lane(int id) {
+		Lane lane = ((id >= 0) && (id < lanes.length)) ? lanes[id] : null;
+		return (lane != null) ? lane : lanes[0];
+	}
+
+	/**
+	 * Sends a stop frame to every worker as soon as it is ready, until all
+	 * the workers are closed
+	 */
+	private void stopWorkers() {
+		if (pending > 0) {
+			logger.debug("ØMQ broker drops {} pending requests", pending);
+		}
+
+		long timeout = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+		ZMQ.Poller poller = context.poller(1);
+		poller.register(backend, ZMQ.Poller.POLLIN);
+
+		while ((workerFactory.openWorkers() > 0) && (System.currentTimeMillis() < timeout)) {
+			try {
+				for (Lane lane : lanes) {
+					if (lane == null) {
+						continue;
+					}
+					lane.pending.clear();
+					while (!lane.workers.isEmpty()) {
+						backend.send(lane.workers.removeFirst(), ZMQ.SNDMORE);
+						backend.send(STOP, 0);
+					}
+				}
+				poller.poll(ZMQSocket.pollTimeout(50));
+				if (poller.pollin(0)) {
+					receiveFromWorkers();
+				}
+			} catch (ZMQException zmqe) {
+				logger.warn("Exception when stopping ØMQ workers", zmqe);
+			}
+		}
+		if (workerFactory.openWorkers() > 0) {
+			logger.warn("Timeout when stopping ØMQ workers");
+		}
+	}
+
+	/**
+	 * @return a {@link #REQUEST} frame with the given reception time and
+	 *         deadline
+	 */
+	static byte[] requestFrame(long received, long deadline) {
+		byte[] frame = new byte[17];
+		frame[0] = REQUEST[0];
+		for (int i = 8; i > 0; i--) {
+			frame[i] = (byte) received;
+			frame[i + 8] = (byte) deadline;
+			received >>>= 8;
+			deadline >>>= 8;
+		}
+		return frame;
+	}
+
+	/**
+	 * @return the reception time of the request of a {@link #REQUEST} frame,
+	 *         or 0 if unknown
+	 */
+	public static long received(byte[] requestFrame) {
+		return (requestFrame.length < 17) ? 0 : decodeLong(requestFrame, 1);
+	}
+
+	/**
+	 * @return the deadline of a {@link #REQUEST} frame, or 0 if the request
+	 *         has no deadline
+	 */
+	public static long deadline(byte[] requestFrame) {
+		return (requestFrame.length < 17) ? 0 : decodeLong(requestFrame, 9);
+	}
+
+	private static long decodeLong(byte[] frame, int offset) {
+		long value = 0;
+		for (int i = offset; i < offset + 8; i++) {
+			value = (value << 8) | (frame[i] & 0xFF);
+		}
+		return value;
+	}
+
+	/**
+	 * @return true if the request of the given {@link #REQUEST} frame has a
+	 *         deadline before now
+	 */
+	public static boolean isExpired(byte[] requestFrame, long now) {
+		long deadline = deadline(requestFrame);
+		return (deadline != 0) && (now - deadline > 0);
+	}
+
+	/**
+	 * @return all the frames of the next message, or null if no message is
+	 *         available
+	 */
+	private static List<byte[]> receive(ZMQ.Socket socket) {
+		byte[] frame = socket.recv(ZMQ.NOBLOCK);
+		if (frame == null) {
+			return null;
+		}
+
+		List<byte[]> message = new ArrayList<byte[]>();
+		message.add(frame);
+		while (socket.hasReceiveMore()) {
+			message.add(socket.recv(0));
+		}
+		return message;
+	}
+
+	private static void send(ZMQ.Socket socket, List<byte[]> frames) {
+		int last = frames.size() - 1;
+		for (int i = 0; i <= last; i++) {
+			socket.send(frames.get(i), (i < last) ? ZMQ.SNDMORE : 0);
+		}
+	}
+
+	/**
+	 * Workers and pending requests of a lane
+	 */
+	private static class Lane {
+
+		final ZMQLane lane;
+
+		final int min;
+
+		final int max;
+
+		final int queueSize;
+
+		/**
+		 * Identities of the ready workers, least recently used first
+		 */
+		final LinkedList<byte[]> workers = new LinkedList<byte[]>();
+
+		/**
+		 * Requests waiting for a ready worker
+		 */
+		final ZMQFairQueue pending;
+
+		/**
+		 * Number of started and not retired workers
+		 */
+		volatile int size = 0;
+
+		volatile int queueDepth = 0;
+
+		/**
+		 * Sum of the busy time of the workers since the last utilization
+		 * computation
+		 */
+		long busyNanos = 0;
+
+		long lastChange = System.nanoTime();
+
+		long lastUtilization = System.nanoTime();
+
+		long idleSince = 0;
+
+		Lane(ZMQLane lane, int min, int max, int queueSize, ZMQClientPolicy clients) {
+			this.lane = lane;
+			this.min = min;
+			this.max = max;
+			this.queueSize = queueSize;
+			this.pending = new ZMQFairQueue(clients);
+		}
+
+		/**
+		 * Accounts the busy time of the workers until now, must be called
+		 * before any change of the number of busy workers
+		 */
+		void account(long now) {
+			busyNanos += (now - lastChange) * (size - workers.size());
+			lastChange = now;
+		}
+
+		/**
+		 * @return the ratio of time the workers were busy since the last call
+		 */
+		double utilization(long now) {
+			account(now);
+			long elapsed = (now - lastUtilization) * Math.max(1, size);
+			double utilization = (elapsed > 0) ? (double) busyNanos / elapsed : 0;
+			busyNanos = 0;
+			lastUtilization = now;
+			return utilization;
+		}
+	}
+}
@@ -0,0 +1,204 @@
+/*
+ * Licensed to Elastic Search and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Elastic Search licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.zeromq;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import org.elasticsearch.common.Unicode;
+import org.elasticsearch.rest.RestRequest.Method;
+import org.elasticsearch.rest.support.RestUtils;
+
+/**
+ * Buffers index and delete requests as the content of a bulk request.
+ * <p>
+ * Supported requests are:
+ * <ul>
+ * <li><code>PUT /index/type/id</code> and <code>POST /index/type[/id]</code></li>
+ * <li><code>PUT /index/type/id/_create</code></li>
+ * <li><code>DELETE /index/type/id</code></li>
+ * </ul>
+ * The routing, parent, version, version_type, op_type, timestamp and ttl
+ * parameters are kept. This class is not thread safe.
+ *
+ * @author tlrx
+ */
+public class ZMQBulkBuffer {
+
+	private static final String[][] PARAMETERS = { { "routing", "_routing" }, { "parent", "_parent" }, { "version", "_version" },
+			{ "version_type", "_version_type" }, { "timestamp", "_timestamp" }, { "ttl", "_ttl" } };
+
+	private final ByteArrayOutputStream buffer;
+
+	private int actions = 0;
+
+	private long firstActionTime = 0;
+
+	public ZMQBulkBuffer(int initialSize) {
+		this.buffer = new ByteArrayOutputStream(initialSize);
+	}
+
+	/**
+	 * Adds the request to the bulk content
+	 *
+	 * @return false if the request is not an index or delete request
+	 */
+	public boolean add(ZMQRestRequest request) {
+		String[] path = path(request.rawPath());
+		if ((path.length < 2) || (path.length > 4)) {
+			return false;
+		}
+
+		String action;
+		if (request.method() == Method.DELETE) {
+			if (path.length != 3) {
+				return false;
+			}
+			action = "delete";
+
+		} else if ((request.method() == Method.PUT) || (request.method() == Method.POST)) {
+			if ((path.length == 4) && !"_create".equals(path[3])) {
+				return false;
+			}
+			if ((path.length == 2) && (request.method() == Method.PUT)) {
+				return false;
+			}
+			if (!request.hasContent()) {
+				return false;
+			}
+			boolean create = (path.length == 4) || "create".equals(request.param("op_type"));
+			action = create ? "create" : "index";
+
+		} else {
+			return false;
+		}
+
+		if (path[0].startsWith("_") || path[1].startsWith("_") || ((path.length > 2) && path[2].startsWith("_"))) {
+			return false;
+		}
+
+		// Action line
+		StringBuilder sb = new StringBuilder(128);
+		sb.append("{\"").append(action).append("\":{");
+		field(sb, "_index", path[0]).append(',');
+		field(sb, "_type", path[1]);
+		if (path.length > 2) {
+			field(sb.append(','), "_id", path[2]);
+		}
+		for (String[] parameter : PARAMETERS) {
+			String value = request.param(parameter[0]);
+			if (value != null) {
+				field(sb.append(','), parameter[1], value);
+			}
+		}
+		sb.append("}}\n");
+
+		if (actions == 0) {
+			firstActionTime = System.nanoTime();
+		}
+
+		byte[] line = Unicode.fromStringAsBytes(sb.toString());
+		buffer.write(line, 0, line.length);
+
+		// Source line: new lines can only be white spaces in JSON documents
+		if (!"delete".equals(action)) {
+			byte[] content = request.contentByteArray();
+			int start = request.contentByteArrayOffset();
+			int end = start + request.contentLength();
+			for (int i = start; i < end; i++) {
+				if ((content[i] == '\n') || (content[i] == '\r')) {
+					buffer.write(content, start, i - start);
+					buffer.write(' ');
+					start = i + 1;
+				}
+			}
+			buffer.write(content, start, end - start);
+			buffer.write('\n');
+		}
+
+		actions++;
+		return true;
+	}
+
+	/**
+	 * @return the number of buffered actions
+	 */
+	public int actions() {
+		return actions;
+	}
+
+	/**
+	 * @return the size in bytes of the bulk content
+	 */
+	public int size() {
+		return buffer.size();
+	}
+
+	/**
+	 * @return the time (System.nanoTime()) when the first buffered action was
+	 *         added
+	 */
+	public long firstActionTime() {
+		return firstActionTime;
+	}
+
+	/**
+	 * @return the bulk request and reset the buffer
+	 */
+	public ZMQRestRequest flush() {
+		ZMQRestRequest request = new ZMQRestRequest(Method.POST, "/_bulk", ByteBuffer.wrap(buffer.toByteArray()));
+		buffer.reset();
+		actions = 0;
+		return request;
+	}
+
+	private static String[] path(String rawPath) {
+		String p = rawPath;
+		if (p.startsWith("/")) {
+			p = p.substring(1);
+		}
+		if (p.endsWith("/")) {
+			p = p.substring(0, p.length() - 1);
+		}
+		if (p.length() == 0) {
+			return new String[0];
+		}
+		String[] path = p.split("/");
+		for (int i = 0; i < path.length; i++) {
+			path[i] = RestUtils.decodeComponent(path[i]);
+		}
+		return path;
+	}
+
+	private static StringBuilder field(StringBuilder sb, String name, String value) {
+		sb.append('"').append(name).append("\":\"");
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if ((c == '"') || (c == '\\')) {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"');
+	}
+}
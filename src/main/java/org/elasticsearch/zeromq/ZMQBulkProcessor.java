@@ -0,0 +1,437 @@
+/*
+ * Licensed to Elastic Search and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Elastic Search licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.zeromq;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.Unicode;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.rest.RestStatus;
+
+/**
+ * Coalesces ingest messages into bulk requests sent to ES. The number of
+ * concurrent bulk requests is limited, so {@link #flush(Object)} blocks when
+ * ES does not keep up.
+ * <p>
+ * Each bulk request can be flushed with a marker: {@link #acknowledged()}
+ * returns the marker of the latest bulk request completed after all the
+ * previous ones. Bulk requests that fail as a whole can be retried by the
+ * owning thread with {@link #retry()}.
+ * <p>
+ * This class must be used by a single thread, except for the counters and
+ * the errors.
+ *
+ * @author tlrx
+ */
+public class ZMQBulkProcessor {
+
+	private static final byte[] ERROR = Unicode.fromStringAsBytes("\"error\"");
+
+	private final ESLogger logger;
+
+	private final ZMQRestImpl client;
+
+	final int flushActions;
+
+	final ByteSizeValue flushSize;
+
+	final TimeValue flushInterval;
+
+	final int concurrentRequests;
+
+	final int maxRetries;
+
+	final TimeValue retryInterval;
+
+	final boolean publishErrors;
+
+	private final Semaphore bulkPermits;
+
+	private final ZMQBulkBuffer buffer;
+
+	/**
+	 * Bulk requests sent or waiting for a retry, in flush order
+	 */
+	private final LinkedList<Bulk> bulks = new LinkedList<Bulk>();
+
+	/**
+	 * Bulk requests that failed and must be retried
+	 */
+	private final ConcurrentLinkedQueue<Bulk> failedBulks = new ConcurrentLinkedQueue<Bulk>();
+
+	/**
+	 * Error messages waiting to be published
+	 */
+	private final ConcurrentLinkedQueue<byte[]> errors = new ConcurrentLinkedQueue<byte[]>();
+
+	private final CounterMetric received = new CounterMetric();
+
+	private final CounterMetric rejected = new CounterMetric();
+
+	private final CounterMetric succeeded = new CounterMetric();
+
+	private final CounterMetric failed = new CounterMetric();
+
+	private final CounterMetric sent = new CounterMetric();
+
+	private final CounterMetric retried = new CounterMetric();
+
+	public ZMQBulkProcessor(ESLogger logger, Settings settings, ZMQRestImpl client, int maxRetries) {
+		this.logger = logger;
+		this.client = client;
+		this.maxRetries = maxRetries;
+
+		this.flushActions = settings.getAsInt("zeromq.ingest.flush.actions", 1000);
+		this.flushSize = settings.getAsBytesSize("zeromq.ingest.flush.size", new ByteSizeValue(5, ByteSizeUnit.MB));
+		this.flushInterval = settings.getAsTime("zeromq.ingest.flush.interval", TimeValue.timeValueSeconds(1));
+		this.concurrentRequests = settings.getAsInt("zeromq.ingest.concurrent_requests", 2);
+		this.retryInterval = settings.getAsTime("zeromq.ingest.retry_interval", TimeValue.timeValueSeconds(1));
+		this.publishErrors = (settings.get("zeromq.ingest.errors.bind") != null);
+
+		this.bulkPermits = new Semaphore(concurrentRequests);
+		this.buffer = new ZMQBulkBuffer((int) Math.min(flushSize.bytes(), 1024 * 1024));
+
+		logger.debug(
+				"ØMQ ingest settings [zeromq.ingest.flush.actions={}, zeromq.ingest.flush.size={}, zeromq.ingest.flush.interval={}, zeromq.ingest.concurrent_requests={}, zeromq.ingest.retry_interval={}]",
+				flushActions, flushSize, flushInterval, concurrentRequests, retryInterval);
+	}
+
+	/**
+	 * Adds the message to the current bulk request
+	 *
+	 * @param parts
+	 *            all the frames of the message, the delimiter frame is
+	 *            optional
+	 * @return false if the message is invalid or not supported
+	 */
+	public boolean add(List<byte[]> parts) {
+		received.inc();
+
+		// No envelope with PULL sockets, the delimiter frame is optional
+		List<byte[]> content = parts;
+		if ((parts.size() > 1) && (parts.get(0).length == 0)) {
+			content = parts.subList(1, parts.size());
+		}
+
+		try {
+			if (buffer.add(ZMQRestRequest.parse(content, parts, client.maxDecompressedLength()))) {
+				return true;
+			}
+		} catch (Exception e) {
+			if (logger.isDebugEnabled()) {
+				logger.debug("Invalid ØMQ ingest message", e);
+			}
+		}
+		reject("Invalid or unsupported message");
+		return false;
+	}
+
+	/**
+	 * Counts a message that will not be sent to ES
+	 */
+	public void reject(String message) {
+		rejected.inc();
+		failed.inc();
+		error("_ingest", message);
+	}
+
+	/**
+	 * @return the number of actions in the current bulk request
+	 */
+	public int actions() {
+		return buffer.actions();
+	}
+
+	/**
+	 * @return true if the current bulk request reached the number of actions or
+	 *         the size threshold or, when checkInterval is true, the flush
+	 *         interval
+	 */
+	public boolean needsFlush(boolean checkInterval) {
+		if (buffer.actions() == 0) {
+			return false;
+		}
+		if ((buffer.actions() >= flushActions) || (buffer.size() >= flushSize.bytes())) {
+			return true;
+		}
+		return checkInterval && ((System.nanoTime() - buffer.firstActionTime()) >= flushInterval.nanos());
+	}
+
+	/**
+	 * Sends the current bulk request, waiting for a permit if too many bulk
+	 * requests are already executing
+	 */
+	public void flush(Object marker) {
+		if (buffer.actions() == 0) {
+			return;
+		}
+		Bulk bulk = new Bulk(buffer.actions(), buffer.flush(), marker);
+		synchronized (bulks) {
+			bulks.add(bulk);
+		}
+		send(bulk);
+	}
+
+	/**
+	 * Sends again the bulk requests that failed, once the retry interval is
+	 * elapsed
+	 */
+	public void retry() {
+		Bulk bulk;
+		while (((bulk = failedBulks.peek()) != null) && ((System.nanoTime() - bulk.failureTime) >= retryInterval.nanos())) {
+			failedBulks.poll();
+			retried.inc();
+			send(bulk);
+		}
+	}
+
+	/**
+	 * @return the marker of the latest bulk request completed after all the
+	 *         previously flushed ones, or null
+	 */
+	public Object acknowledged() {
+		Object marker = null;
+		synchronized (bulks) {
+			while (!bulks.isEmpty() && bulks.getFirst().completed) {
+				marker = bulks.removeFirst().marker;
+			}
+		}
+		return marker;
+	}
+
+	/**
+	 * @return true if nothing is buffered and all the flushed bulk requests
+	 *         have been acknowledged
+	 */
+	public boolean idle() {
+		synchronized (bulks) {
+			return bulks.isEmpty() && (buffer.actions() == 0);
+		}
+	}
+
+	/**
+	 * Waits for all the executing bulk requests to complete
+	 */
+	public boolean awaitBulks(long timeout, TimeUnit unit) throws InterruptedException {
+		if (bulkPermits.tryAcquire(concurrentRequests, timeout, unit)) {
+			bulkPermits.release(concurrentRequests);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the next error message to publish, or null
+	 */
+	public byte[] pollError() {
+		return errors.poll();
+	}
+
+	private void send(final Bulk bulk) {
+		try {
+			bulkPermits.acquire();
+		} catch (InterruptedException e) {
+			completed(bulk, bulk.actions, "Interrupted");
+			return;
+		}
+		sent.inc();
+		bulk.attempts++;
+
+		if (logger.isTraceEnabled()) {
+			logger.trace("Sending ØMQ ingest bulk request of {} actions", bulk.actions);
+		}
+
+		try {
+			dispatch(bulk);
+		} catch (RuntimeException e) {
+			// The listener will not be called
+			try {
+				failed(bulk, "Unable to send bulk request [" + e.getMessage() + "]");
+			} finally {
+				bulkPermits.release();
+			}
+		}
+	}
+
+	private void dispatch(final Bulk bulk) {
+		client.dispatch(bulk.request, new ZMQResponseListener() {
+
+			@Override
+			public void onResponse(ZMQRestResponse response) {
+				try {
+					if (response.status().getStatus() >= 500) {
+						failed(bulk, "Bulk request failed with status " + response.status());
+					} else if (response.status() != RestStatus.OK) {
+						completed(bulk, bulk.actions, "Bulk request failed with status " + response.status());
+					} else {
+						completed(bulk, failures(response), null);
+					}
+				} catch (Exception e) {
+					logger.warn("Unable to read ØMQ ingest bulk response", e);
+					completed(bulk, 0, null);
+				} finally {
+					bulkPermits.release();
+				}
+			}
+
+			@Override
+			public void onFailure(Throwable e) {
+				try {
+					failed(bulk, "Bulk request failed [" + e.getMessage() + "]");
+				} finally {
+					bulkPermits.release();
+				}
+			}
+		});
+	}
+
+	private void failed(Bulk bulk, String message) {
+		if (bulk.attempts <= maxRetries) {
+			if (logger.isDebugEnabled()) {
+				logger.debug("{}, bulk request will be retried", message);
+			}
+			bulk.failureTime = System.nanoTime();
+			failedBulks.offer(bulk);
+		} else {
+			completed(bulk, bulk.actions, message);
+		}
+	}
+
+	private void completed(Bulk bulk, int failures, String message) {
+		if (message != null) {
+			error("_bulk", message);
+		}
+		failed.inc(failures);
+		succeeded.inc(bulk.actions - failures);
+		synchronized (bulks) {
+			bulk.completed = true;
+		}
+	}
+
+	/**
+	 * @return the number of failed items of a bulk response
+	 */
+	@SuppressWarnings("unchecked")
+	private int failures(ZMQRestResponse response) {
+		if (response.body == null) {
+			return 0;
+		}
+		byte[] content = response.body.array();
+		int offset = response.body.arrayOffset() + response.body.position();
+		int length = response.body.remaining();
+
+		// Fast path: no item has failed
+		if (!contains(content, offset, length, ERROR)) {
+			return 0;
+		}
+
+		int failures = 0;
+		Map<String, Object> map = XContentHelper.convertToMap(content, offset, length, false).v2();
+		List<Object> items = (List<Object>) map.get("items");
+		if (items != null) {
+			for (Object item : items) {
+				for (Object result : ((Map<String, Object>) item).values()) {
+					Map<String, Object> r = (Map<String, Object>) result;
+					if (r.get("error") != null) {
+						failures++;
+						error(r.get("_index") + "/" + r.get("_type") + "/" + r.get("_id"), String.valueOf(r.get("error")));
+					}
+				}
+			}
+		}
+		return failures;
+	}
+
+	private static boolean contains(byte[] content, int offset, int length, byte[] pattern) {
+		int end = offset + length - pattern.length;
+		for (int i = offset; i <= end; i++) {
+			int j = 0;
+			while ((j < pattern.length) && (content[i + j] == pattern[j])) {
+				j++;
+			}
+			if (j == pattern.length) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void error(String source, String message) {
+		if (publishErrors) {
+			errors.offer(Unicode.fromStringAsBytes(source + ZMQSocket.SEPARATOR + message));
+		}
+	}
+
+	public long received() {
+		return received.count();
+	}
+
+	public long rejected() {
+		return rejected.count();
+	}
+
+	public long succeeded() {
+		return succeeded.count();
+	}
+
+	public long failed() {
+		return failed.count();
+	}
+
+	public long bulks() {
+		return sent.count();
+	}
+
+	public long retries() {
+		return retried.count();
+	}
+
+	private static class Bulk {
+
+		final int actions;
+
+		final ZMQRestRequest request;
+
+		final Object marker;
+
+		volatile int attempts = 0;
+
+		volatile long failureTime;
+
+		boolean completed = false;
+
+		Bulk(int actions, ZMQRestRequest request, Object marker) {
+			this.actions = actions;
+			this.request = request;
+			this.marker = marker;
+		}
+	}
+}
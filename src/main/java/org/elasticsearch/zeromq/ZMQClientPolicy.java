@@ -0,0 +1,146 @@
+/*
+ * Licensed to Elastic Search and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Elastic Search licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.zeromq;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.elasticsearch.common.Unicode;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * Scheduling weight and rate limit of the clients, identified by their ØMQ
+ * socket identity (the first envelope frame received by the ROUTER socket).
+ * <p>
+ * Clients are configured with the {@code zeromq.clients.<identity>.weight}
+ * and {@code zeromq.clients.<identity>.rate} (requests per second) settings.
+ * Other clients have a weight of 1 and no rate limit.
+ * <p>
+ * This class is not thread safe, each broker has its own instance.
+ *
+ * @author tlrx
+ */
+public class ZMQClientPolicy {
+
+	private static final Client DEFAULT = new Client(1, 0, 0);
+
+	private final Map<Identity, Client> clients = new HashMap<Identity, Client>();
+
+	public ZMQClientPolicy(ESLogger logger, Settings settings) {
+		Map<String, Settings> groups = settings.getGroups("zeromq.clients");
+
+		for (Map.Entry<String, Settings> group : groups.entrySet()) {
+			Settings client = group.getValue();
+
+			int weight = Math.max(1, client.getAsInt("weight", 1));
+			double rate = Math.max(0, client.getAsDouble("rate", 0.0));
+			double burst = Math.max(1, client.getAsDouble("burst", Math.max(1, rate)));
+
+			clients.put(new Identity(Unicode.fromStringAsBytes(group.getKey())), new Client(weight, rate, burst));
+			logger.debug("ØMQ client {} [weight={}, rate={}, burst={}]", group.getKey(), weight, rate, burst);
+		}
+	}
+
+	/**
+	 * @return the number of requests of the client handed to the workers in
+	 *         each scheduling round
+	 */
+	public int weight(byte[] identity) {
+		return client(identity).weight;
+	}
+
+	/**
+	 * Takes a token in the bucket of the client
+	 *
+	 * @return false if the client exceeds its rate limit
+	 */
+	public boolean admit(byte[] identity, long now) {
+		Client client = client(identity);
+		if (client.rate <= 0) {
+			return true;
+		}
+		client.tokens = Math.min(client.burst, client.tokens + (now - client.lastRefill) * client.rate / 1000000000.0);
+		client.lastRefill = now;
+
+		if (client.tokens < 1) {
+			return false;
+		}
+		client.tokens--;
+		return true;
+	}
+
+	private Client client(byte[] identity) {
+		if (clients.isEmpty()) {
+			return DEFAULT;
+		}
+		Client client = clients.get(new Identity(identity));
+		return (client != null) ? client : DEFAULT;
+	}
+
+	/**
+	 * Settings and token bucket of a configured client
+	 */
+	private static class Client {
+
+		final int weight;
+
+		final double rate;
+
+		final double burst;
+
+		double tokens;
+
+		long lastRefill = System.nanoTime();
+
+		Client(int weight, double rate, double burst) {
+			this.weight = weight;
+			this.rate = rate;
+			this.burst = burst;
+			this.tokens = burst;
+		}
+	}
+
+	/**
+	 * Socket identity usable as a map key
+	 */
+	static final class Identity {
+
+		final byte[] bytes;
+
+		private final int hash;
+
+		Identity(byte[] bytes) {
+			this.bytes = bytes;
+			this.hash = Arrays.hashCode(bytes);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return (obj instanceof Identity) && Arrays.equals(bytes, ((Identity) obj).bytes);
+		}
+	}
+}
@@ -0,0 +1,233 @@
+/*
+ * Licensed to Elastic Search and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Elastic Search licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.zeromq;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.elasticsearch.common.compress.lzf.LZFDecoder;
+import org.elasticsearch.common.compress.lzf.LZFEncoder;
+import org.elasticsearch.zeromq.exception.ZMQContentTooLargeException;
+import org.elasticsearch.zeromq.exception.ZMQTransportException;
+
+/**
+ * Compression of the request and reply contents of protocol V2 messages,
+ * negotiated with the <code>Content-Encoding</code> and
+ * <code>Accept-Encoding</code> headers:
+ * <ul>
+ * <li><code>lzf</code>: chunks of the LZF format, encoded and decoded by the
+ * LZF codec bundled with Elasticsearch, fast with a fair ratio on JSON</li>
+ * <li><code>deflate</code>: zlib format, slower with a better ratio</li>
+ * </ul>
+ * Contents are compressed and decompressed in a single pass between the frame
+ * and the result array, without intermediate streams. Decompressed contents
+ * are limited in size, so that a small compressed content can not exhaust the
+ * memory of the node.
+ *
+ * @author tlrx
+ */
+public final class ZMQCompression {
+
+	public static final String LZF = "lzf";
+
+	public static final String DEFLATE = "deflate";
+
+	public static final String CONTENT_ENCODING_HEADER = "content-encoding";
+
+	public static final String ACCEPT_ENCODING_HEADER = "accept-encoding";
+
+	private static final int LZF_HEADER_COMPRESSED = 7;
+
+	private static final int LZF_HEADER_UNCOMPRESSED = 5;
+
+	private ZMQCompression() {
+	}
+
+	/**
+	 * @return true if the encoding is supported
+	 */
+	public static boolean isSupported(String encoding) {
+		return LZF.equalsIgnoreCase(encoding) || DEFLATE.equalsIgnoreCase(encoding);
+	}
+
+	/**
+	 * @return the first supported encoding of an <code>Accept-Encoding</code>
+	 *         header (quality values are ignored), or null if none is
+	 *         supported
+	 */
+	public static String accepted(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return null;
+		}
+		for (String encoding : acceptEncoding.split(",")) {
+			int params = encoding.indexOf(';');
+			if (params >= 0) {
+				encoding = encoding.substring(0, params);
+			}
+			encoding = encoding.trim().toLowerCase();
+			if (isSupported(encoding)) {
+				return encoding;
+			}
+		}
+		return null;
+	}
+
+	public static byte[] compress(String encoding, byte[] data, int offset, int length) {
+		if (LZF.equalsIgnoreCase(encoding)) {
+			return lzfCompress(data, offset, length);
+		}
+		if (DEFLATE.equalsIgnoreCase(encoding)) {
+			return deflate(data, offset, length);
+		}
+		throw new ZMQTransportException("Unsupported content encoding [" + encoding + "]");
+	}
+
+	/**
+	 * @param maxLength
+	 *            maximum length of the decompressed data
+	 * @throws ZMQContentTooLargeException
+	 *             if the decompressed data is larger than maxLength, checked
+	 *             before it is allocated
+	 * @throws ZMQTransportException
+	 *             if the encoding is not supported or the data is corrupted
+	 */
+	public static byte[] decompress(String encoding, byte[] data, int offset, int length, long maxLength) {
+		if (LZF.equalsIgnoreCase(encoding)) {
+			return lzfDecompress(data, offset, length, maxLength);
+		}
+		if (DEFLATE.equalsIgnoreCase(encoding)) {
+			return inflate(data, offset, length, maxLength);
+		}
+		throw new ZMQTransportException("Unsupported content encoding [" + encoding + "]");
+	}
+
+	static byte[] lzfCompress(byte[] data, int offset, int length) {
+		try {
+			return LZFEncoder.encode(data, offset, length);
+		} catch (IOException e) {
+			throw new ZMQTransportException("Unable to compress LZF content", e);
+		}
+	}
+
+	/**
+	 * Decompresses LZF chunks with the decoder of Elasticsearch. The
+	 * uncompressed length is read from the chunk headers first, so that it is
+	 * checked before the content is allocated.
+	 */
+	static byte[] lzfDecompress(byte[] data, int offset, int length, long maxLength) {
+		if (lzfLength(data, offset, length) > maxLength) {
+			throw new ZMQContentTooLargeException(maxLength);
+		}
+		try {
+			return LZFDecoder.decode(data, offset, length);
+		} catch (IOException e) {
+			throw new ZMQTransportException("Corrupted LZF content", e);
+		} catch (RuntimeException e) {
+			throw new ZMQTransportException("Corrupted LZF content", e);
+		}
+	}
+
+	/**
+	 * @return the uncompressed length of LZF chunks, from their headers
+	 */
+	private static long lzfLength(byte[] data, int offset, int length) {
+		int end = offset + length;
+
+		long total = 0;
+		int ip = offset;
+		while (ip < end) {
+			if ((ip + LZF_HEADER_UNCOMPRESSED > end) || (data[ip] != 'Z') || (data[ip + 1] != 'V')) {
+				throw new ZMQTransportException("Corrupted LZF content");
+			}
+			int chunk = ((data[ip + 3] & 0xFF) << 8) | (data[ip + 4] & 0xFF);
+			if (data[ip + 2] == 0) {
+				total += chunk;
+				ip += LZF_HEADER_UNCOMPRESSED + chunk;
+			} else if ((data[ip + 2] == 1) && (ip + LZF_HEADER_COMPRESSED <= end)) {
+				total += ((data[ip + 5] & 0xFF) << 8) | (data[ip + 6] & 0xFF);
+				ip += LZF_HEADER_COMPRESSED + chunk;
+			} else {
+				throw new ZMQTransportException("Corrupted LZF content");
+			}
+		}
+		if (ip != end) {
+			throw new ZMQTransportException("Corrupted LZF content");
+		}
+		return total;
+	}
+
+	static byte[] deflate(byte[] data, int offset, int length) {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		try {
+			deflater.setInput(data, offset, length);
+			deflater.finish();
+
+			byte[] out = new byte[Math.max(64, length / 4)];
+			int op = 0;
+			while (!deflater.finished()) {
+				if (op == out.length) {
+					out = Arrays.copyOf(out, out.length * 2);
+				}
+				op += deflater.deflate(out, op, out.length - op);
+			}
+			return Arrays.copyOf(out, op);
+		} finally {
+			deflater.end();
+		}
+	}
+
+	static byte[] inflate(byte[] data, int offset, int length, long maxLength) {
+		// The output can not be known in advance: one more byte than the
+		// maximum is allowed, to detect a larger content
+		int limit = (int) Math.min(maxLength + 1, Integer.MAX_VALUE - 8);
+
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data, offset, length);
+
+			byte[] out = new byte[(int) Math.min(Math.max(64L, length * 4L), limit)];
+			int op = 0;
+			while (!inflater.finished()) {
+				if (op == out.length) {
+					if (op >= limit) {
+						throw new ZMQContentTooLargeException(maxLength);
+					}
+					out = Arrays.copyOf(out, (int) Math.min(out.length * 2L, limit));
+				}
+				int n = inflater.inflate(out, op, out.length - op);
+				if ((n == 0) && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new ZMQTransportException("Corrupted deflate content");
+				}
+				op += n;
+			}
+			if (op > maxLength) {
+				throw new ZMQContentTooLargeException(maxLength);
+			}
+			return (op == out.length) ? out : Arrays.copyOf(out, op);
+		} catch (DataFormatException e) {
+			throw new ZMQTransportException("Corrupted deflate content", e);
+		} finally {
+			inflater.end();
+		}
+	}
+}
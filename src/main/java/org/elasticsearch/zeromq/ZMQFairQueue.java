@@ -0,0 +1,140 @@
+/*
+ * Licensed to Elastic Search and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Elastic Search licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.zeromq;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Queue of requests scheduled by weighted round robin over the clients: each
+ * client (identified by its ROUTER identity frame) has its own FIFO
+ * queue, and the clients with waiting requests take turns, each one handing
+ * over as many requests as its {@link ZMQClientPolicy#weight(byte[])} per
+ * turn.
+ * <p>
+ * A client sending a flood of requests then only delays the other clients by
+ * its share of the workers instead of the whole queue.
+ * <p>
+ * This class is not thread safe.
+ *
+ * @author tlrx
+ */
+public class ZMQFairQueue {
+
+	private final ZMQClientPolicy policy;
+
+	/**
+	 * Queues of the clients with waiting requests
+	 */
+	private final Map<ZMQClientPolicy.Identity, ClientQueue> queues = new HashMap<ZMQClientPolicy.Identity, ClientQueue>();
+
+	/**
+	 * Clients with waiting requests, in round robin order
+	 */
+	private final LinkedList<ClientQueue> active = new LinkedList<ClientQueue>();
+
+	private int size = 0;
+
+	public ZMQFairQueue(ZMQClientPolicy policy) {
+		this.policy = policy;
+	}
+
+	/**
+	 * Adds a request at the end of the queue of the given client
+	 */
+	public void add(byte[] client, List<byte[]> message) {
+		ZMQClientPolicy.Identity identity = new ZMQClientPolicy.Identity(client);
+
+		ClientQueue queue = queues.get(identity);
+		if (queue == null) {
+			queue = new ClientQueue(identity, policy.weight(identity.bytes));
+			queues.put(identity, queue);
+			active.addLast(queue);
+		}
+		queue.messages.addLast(message);
+		size++;
+	}
+
+	/**
+	 * @return the next request to hand to a worker, or null if the queue is
+	 *         empty
+	 */
+	public List<byte[]> poll() {
+		if (active.isEmpty()) {
+			return null;
+		}
+		ClientQueue queue = active.getFirst();
+		List<byte[]> message = queue.messages.removeFirst();
+		size--;
+
+		if (queue.messages.isEmpty()) {
+			active.removeFirst();
+			queues.remove(queue.identity);
+
+		} else if (++queue.served >= queue.weight) {
+			// End of the client's turn
+			queue.served = 0;
+			active.addLast(active.removeFirst());
+		}
+		return message;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return the number of clients with waiting requests
+	 */
+	public int clients() {
+		return active.size();
+	}
+
+	public void clear() {
+		queues.clear();
+		active.clear();
+		size = 0;
+	}
+
+	private static class ClientQueue {
+
+		final ZMQClientPolicy.Identity identity;
+
+		final int weight;
+
+		final LinkedList<List<byte[]>> messages = new LinkedList<List<byte[]>>();
+
+		/**
+		 * Number of requests handed over during the current turn
+		 */
+		int served = 0;
+
+		ClientQueue(ZMQClientPolicy.Identity identity, int weight) {
+			this.identity = identity;
+			this.weight = weight;
+		}
+	}
+}
@@ -0,0 +1,439 @@
+/*
+ * Licensed to Elastic Search and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Elastic Search licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.zeromq;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.elasticsearch.common.Unicode;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.RestRequest.Method;
+import org.elasticsearch.rest.RestStatus;
+
+/**
+ * Gathers the gets of a single document (<code>GET /index/type/id</code>)
+ * dispatched within a short window into a multi get request, and splits its
+ * response back to the listener of each get.
+ * <p>
+ * A batch is sent when the window elapsed since its first get, or as soon as
+ * it holds the maximum number of gets. The documents of the multi get response
+ * are not copied: each reply wraps its part of the response content, and is
+ * passed to its listener by the thread that sends the response. Gets whose
+ * document fails in the multi get response, or whose multi get request fails,
+ * are dispatched again one by one.
+ * <p>
+ * Only gets without parameters and with a JSON reply are batched, so that the
+ * multi get response has the same content as the gets.
+ * <p>
+ * Settings: <code>zeromq.get_batch.enabled</code> (false by default),
+ * <code>zeromq.get_batch.window</code> (200 microseconds) and
+ * <code>zeromq.get_batch.size</code> (100 gets).
+ *
+ * @author tlrx
+ */
+public class ZMQGetBatcher implements Runnable {
+
+	private static final byte[] DOCS = Unicode.fromStringAsBytes("\"docs\":[");
+
+	private static final byte[] EXISTS = Unicode.fromStringAsBytes("\"exists\":");
+
+	private final ESLogger logger;
+
+	private final ZMQRestImpl client;
+
+	final TimeValue window;
+
+	final int size;
+
+	/**
+	 * Batch of the gets received during the current window, guarded by this
+	 */
+	private Batch pending;
+
+	private volatile boolean running = true;
+
+	private final CountDownLatch waitForClose = new CountDownLatch(1);
+
+	private final CounterMetric batches = new CounterMetric();
+
+	private final CounterMetric batched = new CounterMetric();
+
+	private final CounterMetric fallbacks = new CounterMetric();
+
+	public ZMQGetBatcher(ESLogger logger, Settings settings, ZMQRestImpl client) {
+		this.logger = logger;
+		this.client = client;
+		this.window = settings.getAsTime("zeromq.get_batch.window", TimeValue.timeValueNanos(200000));
+		this.size = Math.max(1, settings.getAsInt("zeromq.get_batch.size", 100));
+
+		logger.debug("ØMQ get batching settings [zeromq.get_batch.window={}, zeromq.get_batch.size={}]", window, size);
+	}
+
+	/**
+	 * Adds the request to the current batch if it is a get of a single
+	 * document
+	 *
+	 * @return false if the request can not be batched and must be dispatched
+	 *         by the caller
+	 */
+	public boolean add(ZMQRestRequest request, ZMQResponseListener listener) {
+		if (!running || !isBatchable(request)) {
+			return false;
+		}
+
+		Batch full = null;
+		synchronized (this) {
+			// Checked again under the lock: once the batcher thread has sent
+			// the last batch, a request added here would never be sent
+			if (!running) {
+				return false;
+			}
+			if (pending == null) {
+				pending = new Batch(System.nanoTime() + window.nanos());
+				notifyAll();
+			}
+			pending.add(request, listener);
+			if (pending.requests.size() >= size) {
+				full = pending;
+				pending = null;
+			}
+		}
+		if (full != null) {
+			send(full);
+		}
+		return true;
+	}
+
+	/**
+	 * Sends the batches once their window elapsed
+	 */
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				Batch batch;
+				synchronized (this) {
+					while (running && (pending == null)) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							return;
+						}
+					}
+					batch = pending;
+				}
+				if (batch == null) {
+					break;
+				}
+
+				// Object.wait() has a millisecond granularity
+				long delay = batch.deadline - System.nanoTime();
+				if (delay > 0) {
+					LockSupport.parkNanos(delay);
+				}
+
+				synchronized (this) {
+					if (pending != batch) {
+						// Already sent because it was full
+						continue;
+					}
+					pending = null;
+				}
+				send(batch);
+			}
+		} finally {
+			Batch batch;
+			synchronized (this) {
+				running = false;
+				batch = pending;
+				pending = null;
+			}
+			if (batch != null) {
+				send(batch);
+			}
+			waitForClose.countDown();
+		}
+	}
+
+	/**
+	 * Stops batching, the current batch is sent
+	 */
+	public void close() {
+		running = false;
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+
+	public boolean awaitClose(long timeout, TimeUnit unit) throws InterruptedException {
+		return waitForClose.await(timeout, unit);
+	}
+
+	private void send(final Batch batch) {
+		batches.inc();
+		batched.inc(batch.requests.size());
+
+		StringBuilder sb = new StringBuilder(64 * batch.requests.size());
+		sb.append("{\"docs\":[");
+		for (int i = 0; i < batch.requests.size(); i++) {
+			String[] segments = ZMQRestRequest.segments(batch.requests.get(i).rawPath());
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append("{\"_index\":\"").append(segments[0]).append("\",\"_type\":\"").append(segments[1]).append("\",\"_id\":\"")
+					.append(segments[2]).append("\"}");
+		}
+		sb.append("]}");
+
+		if (logger.isTraceEnabled()) {
+			logger.trace("Sending ØMQ multi get request of {} gets", batch.requests.size());
+		}
+
+		ZMQRestRequest mget = new ZMQRestRequest(Method.POST, "/_mget", ByteBuffer.wrap(Unicode.fromStringAsBytes(sb.toString())));
+		try {
+			client.dispatch(mget, new ZMQResponseListener() {
+
+				@Override
+				public void onResponse(ZMQRestResponse response) {
+					split(batch, response);
+				}
+
+				@Override
+				public void onFailure(Throwable e) {
+					if (logger.isDebugEnabled()) {
+						logger.debug("ØMQ multi get request failed, gets will be dispatched one by one", e);
+					}
+					fallback(batch, 0, batch.requests.size());
+				}
+			});
+		} catch (RuntimeException e) {
+			logger.debug("Unable to dispatch ØMQ multi get request, gets will be dispatched one by one", e);
+			fallback(batch, 0, batch.requests.size());
+		}
+	}
+
+	/**
+	 * Replies to each get with its document of the multi get response
+	 */
+	private void split(Batch batch, ZMQRestResponse response) {
+		int count = batch.requests.size();
+		int[] starts = new int[count];
+		int[] ends = new int[count];
+
+		if ((response.status() != RestStatus.OK) || (response.body == null) || !documents(response.body, starts, ends)) {
+			if (logger.isDebugEnabled()) {
+				logger.debug("Unexpected ØMQ multi get response [{}], gets will be dispatched one by one", response.status());
+			}
+			fallback(batch, 0, count);
+			return;
+		}
+
+		byte[] content = response.body.array();
+		for (int i = 0; i < count; i++) {
+			ZMQRestRequest request = batch.requests.get(i);
+			ZMQResponseListener listener = batch.listeners.get(i);
+
+			RestStatus status = status(content, starts[i], ends[i]);
+			if (status == null) {
+				// Failed document (ex: missing index), the get has its own
+				// error status
+				fallback(batch, i, i + 1);
+				continue;
+			}
+			if (request.trace() != null) {
+				request.trace().mark(ZMQTrace.RESPONDED);
+			}
+
+			ZMQRestResponse reply = new ZMQRestResponse(status);
+			reply.setContentType(response.contentType());
+			reply.setBody(ByteBuffer.wrap(content, starts[i], ends[i] - starts[i]));
+			reply.setContentThreadSafe(response.contentThreadSafe());
+			client.negotiate(request, reply);
+			try {
+				listener.onResponse(reply);
+			} catch (RuntimeException e) {
+				logger.warn("Failed to reply to ØMQ get request", e);
+			}
+		}
+	}
+
+	/**
+	 * Dispatches the gets one by one
+	 */
+	private void fallback(Batch batch, int from, int to) {
+		for (int i = from; i < to; i++) {
+			fallbacks.inc();
+			try {
+				client.send(batch.requests.get(i), batch.listeners.get(i));
+			} catch (RuntimeException e) {
+				batch.listeners.get(i).onFailure(e);
+			}
+		}
+	}
+
+	/**
+	 * Finds the documents of a multi get response, without parsing them
+	 *
+	 * @return false if the number of documents is not the expected one
+	 */
+	private static boolean documents(ByteBuffer body, int[] starts, int[] ends) {
+		byte[] content = body.array();
+		int end = body.arrayOffset() + body.position() + body.remaining();
+		int pos = indexOf(content, body.arrayOffset() + body.position(), end, DOCS);
+		if (pos < 0) {
+			return false;
+		}
+
+		int count = 0;
+		int depth = 0;
+		boolean string = false;
+		for (pos += DOCS.length; pos < end; pos++) {
+			byte b = content[pos];
+			if (string) {
+				if (b == '\\') {
+					pos++;
+				} else if (b == '"') {
+					string = false;
+				}
+			} else if (b == '"') {
+				string = true;
+			} else if ((b == '{') || (b == '[')) {
+				if ((depth++ == 0) && (count < starts.length)) {
+					starts[count] = pos;
+				}
+			} else if ((b == '}') || (b == ']')) {
+				if (depth == 0) {
+					// End of the docs array
+					break;
+				}
+				if (--depth == 0) {
+					if (count < ends.length) {
+						ends[count] = pos + 1;
+					}
+					count++;
+				}
+			}
+		}
+		return (count == starts.length) && (depth == 0);
+	}
+
+	/**
+	 * @return the status of the get of a document of a multi get response,
+	 *         or null if the document failed. The exists field comes before
+	 *         the source of the document.
+	 */
+	private static RestStatus status(byte[] content, int start, int end) {
+		int pos = indexOf(content, start, end, EXISTS);
+		if (pos < 0) {
+			return null;
+		}
+		pos += EXISTS.length;
+		return ((pos < end) && (content[pos] == 't')) ? RestStatus.OK : RestStatus.NOT_FOUND;
+	}
+
+	private static int indexOf(byte[] content, int start, int end, byte[] pattern) {
+		int last = end - pattern.length;
+		for (int i = start; i <= last; i++) {
+			int j = 0;
+			while ((j < pattern.length) && (content[i + j] == pattern[j])) {
+				j++;
+			}
+			if (j == pattern.length) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return true if the request is a get of a single document, without
+	 *         parameters and with a JSON reply, and if its index, type and id
+	 *         can be sent in a multi get request without decoding or escaping
+	 */
+	static boolean isBatchable(ZMQRestRequest request) {
+		if ((request.method() != Method.GET) || (request.uri().indexOf('?') >= 0) || (request.header(ZMQProtocol.ACCEPT_HEADER) != null)
+				|| (request.contentLength() > 0)) {
+			return false;
+		}
+		String[] segments = ZMQRestRequest.segments(request.rawPath());
+		if (segments.length != 3) {
+			return false;
+		}
+		for (String segment : segments) {
+			if ((segment.length() == 0) || segment.startsWith("_")) {
+				return false;
+			}
+			for (int i = 0; i < segment.length(); i++) {
+				char c = segment.charAt(i);
+				if ((c == ',') || (c == '*') || (c == '%') || (c == '+') || (c == '"') || (c == '\\') || (c < ' ')) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of multi get requests sent
+	 */
+	public long batches() {
+		return batches.count();
+	}
+
+	/**
+	 * @return the number of gets sent in multi get requests
+	 */
+	public long batched() {
+		return batched.count();
+	}
+
+	/**
+	 * @return the number of batched gets dispatched again one by one
+	 */
+	public long fallbacks() {
+		return fallbacks.count();
+	}
+
+	private static class Batch {
+
+		final long deadline;
+
+		final List<ZMQRestRequest> requests = new ArrayList<ZMQRestRequest>();
+
+		final List<ZMQResponseListener> listeners = new ArrayList<ZMQResponseListener>();
+
+		Batch(long deadline) {
+			this.deadline = deadline;
+		}
+
+		void add(ZMQRestRequest request, ZMQResponseListener listener) {
+			requests.add(request);
+			listeners.add(listener);
+		}
+	}
+}
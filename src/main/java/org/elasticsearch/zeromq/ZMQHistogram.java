@@ -0,0 +1,100 @@
+/*
+ * Licensed to Elastic Search and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Elastic Search licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.zeromq;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.elasticsearch.common.metrics.MeanMetric;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * Lock free histogram of positive values, with power of two buckets: the
+ * bucket <code>i</code> counts the values between <code>2^(i-1)</code> and
+ * <code>2^i - 1</code>. Percentiles are approximated by the upper bound of
+ * their bucket, which is enough to follow latencies and sizes that spread
+ * over several orders of magnitude.
+ *
+ * @author tlrx
+ */
+public class ZMQHistogram {
+
+	private static final int BUCKETS = 64;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+	private final MeanMetric mean = new MeanMetric();
+
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+		mean.inc(value);
+	}
+
+	public long count() {
+		return mean.count();
+	}
+
+	public double mean() {
+		return mean.mean();
+	}
+
+	/**
+	 * @return the upper bound of the bucket of the given percentile (between
+	 *         0 and 100), or 0 if no value has been recorded
+	 */
+	public long percentile(double percentile) {
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if ((seen >= rank) && (counts[i] > 0)) {
+				return (i == 0) ? 0 : (i >= BUCKETS - 1) ? Long.MAX_VALUE : (1L << i) - 1;
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+
+	/**
+	 * Adds the count, mean and percentiles of the histogram to the builder
+	 */
+	public void toXContent(String name, XContentBuilder builder) throws IOException {
+		builder.startObject(name);
+		builder.field("count", count());
+		builder.field("mean", mean());
+		builder.field("p50", percentile(50));
+		builder.field("p90", percentile(90));
+		builder.field("p99", percentile(99));
+		builder.field("p999", percentile(99.9));
+		builder.endObject();
+	}
+}
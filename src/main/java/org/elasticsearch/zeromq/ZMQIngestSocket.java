@@ -0,0 +1,337 @@
+/*
+ * Licensed to Elastic Search and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Elastic Search licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.zeromq;
+
+import static org.elasticsearch.common.util.concurrent.EsExecutors.daemonThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQException;
+
+/**
+ * Fire-and-forget ingestion socket (PULL): index and delete messages are
+ * buffered and sent to ES as a single bulk request once the number of actions,
+ * the size of the bulk or the flush interval is reached. Nothing is replied,
+ * failures are counted and can be published on a PUB socket.
+ * <p>
+ * When a spool directory is given, messages are appended to a durable
+ * {@link ZMQSpool} and a drainer thread sends them to ES at the rate ES can
+ * accept, so the socket never waits for ES.
+ *
+ * @author tlrx
+ */
+public class ZMQIngestSocket implements Runnable {
+
+	private final ESLogger logger;
+
+	private final Settings settings;
+
+	private final ZMQ.Context context;
+
+	private final AtomicBoolean isRunning;
+
+	private final CountDownLatch waitForClose;
+
+	final String binding;
+
+	final String errorsBinding;
+
+	final File spoolDirectory;
+
+	final ByteSizeValue spoolSegmentSize;
+
+	final TimeValue spoolSyncInterval;
+
+	private final ZMQBulkProcessor processor;
+
+	private final long pollTimeoutMillis;
+
+	private ZMQSpool spool;
+
+	private volatile Thread drainerThread;
+
+	public ZMQIngestSocket(ESLogger logger, Settings settings, ZMQ.Context context, ZMQRestImpl client, AtomicBoolean isRunning, File spoolDirectory) {
+		this.logger = logger;
+		this.settings = settings;
+		this.context = context;
+		this.isRunning = isRunning;
+		this.spoolDirectory = spoolDirectory;
+
+		this.binding = settings.get("zeromq.ingest.bind");
+		this.errorsBinding = settings.get("zeromq.ingest.errors.bind");
+		this.spoolSegmentSize = settings.getAsBytesSize("zeromq.ingest.spool.segment_size", new ByteSizeValue(64, ByteSizeUnit.MB));
+		this.spoolSyncInterval = settings.getAsTime("zeromq.ingest.spool.sync_interval", TimeValue.timeValueSeconds(1));
+
+		// Bulk requests are only retried when messages are spooled
+		int maxRetries = (spoolDirectory != null) ? settings.getAsInt("zeromq.ingest.spool.max_retries", 10) : 0;
+		this.processor = new ZMQBulkProcessor(logger, settings, client, maxRetries);
+		this.pollTimeoutMillis = Math.max(1, Math.min(processor.flushInterval.millis(), 100));
+
+		this.waitForClose = new CountDownLatch((spoolDirectory != null) ? 2 : 1);
+
+		logger.debug("ØMQ ingest settings [zeromq.ingest.bind={}, zeromq.ingest.errors.bind={}, spool={}]", binding, errorsBinding, spoolDirectory);
+	}
+
+	@Override
+	public void run() {
+
+		if (spoolDirectory != null) {
+			try {
+				spool = new ZMQSpool(logger, spoolDirectory, spoolSegmentSize.bytes(), spoolSyncInterval.nanos());
+			} catch (IOException e) {
+				logger.error("Unable to open ØMQ spool {}, messages will not be spooled", e, spoolDirectory);
+				waitForClose.countDown();
+			}
+			if (spool != null) {
+				daemonThreadFactory(settings, "zeromq_ingest_drainer").newThread(new SpoolDrainer()).start();
+			}
+		}
+
+		ZMQ.Socket pull = context.socket(ZMQ.PULL);
+		pull.bind(binding);
+
+		ZMQ.Socket errorsSocket = null;
+		if (errorsBinding != null) {
+			errorsSocket = context.socket(ZMQ.PUB);
+			errorsSocket.bind(errorsBinding);
+		}
+
+		ZMQ.Poller poller = context.poller(1);
+		poller.register(pull, ZMQ.Poller.POLLIN);
+
+		long pollTimeout = ZMQSocket.pollTimeout(pollTimeoutMillis);
+
+		if (logger.isInfoEnabled()) {
+			logger.info("ØMQ ingest socket is listening on {}...", binding);
+		}
+
+		while (isRunning.get()) {
+			try {
+				poller.poll(pollTimeout);
+
+				if (poller.pollin(0)) {
+					// Reads all the available messages
+					List<byte[]> parts;
+					while ((parts = receive(pull)) != null) {
+						if (spool != null) {
+							append(parts);
+						} else {
+							processor.add(parts);
+							if (processor.needsFlush(false)) {
+								processor.flush(null);
+							}
+						}
+					}
+				}
+
+				if ((spool == null) && processor.needsFlush(true)) {
+					processor.flush(null);
+				}
+				if (spool != null) {
+					spool.sync();
+				}
+
+				publishErrors(errorsSocket);
+
+			} catch (ZMQException zmqe) {
+				if (logger.isWarnEnabled()) {
+					logger.warn("Exception when receiving ingest message", zmqe);
+				}
+			}
+		}
+
+		try {
+			// Sends the remaining actions and waits for the responses
+			if (spool == null) {
+				processor.flush(null);
+			}
+			if (!processor.awaitBulks(10, TimeUnit.SECONDS)) {
+				logger.warn("Timeout when waiting for ØMQ ingest bulk requests");
+			}
+			publishErrors(errorsSocket);
+
+		} catch (InterruptedException e) {
+			// nothing
+		}
+
+		try {
+			pull.close();
+			if (errorsSocket != null) {
+				errorsSocket.close();
+			}
+			logger.info("ØMQ ingest socket is closed");
+
+		} catch (Exception e) {
+			logger.error("Exception when closing ØMQ ingest socket", e);
+		}
+		waitForClose.countDown();
+	}
+
+	/**
+	 * Waits for the ingestion threads to complete
+	 */
+	public boolean awaitClose(long timeout, TimeUnit unit) throws InterruptedException {
+		return waitForClose.await(timeout, unit);
+	}
+
+	public ZMQBulkProcessor processor() {
+		return processor;
+	}
+
+	/**
+	 * @return all the frames of the next message, or null if no message is
+	 *         available
+	 */
+	private List<byte[]> receive(ZMQ.Socket pull) {
+		byte[] frame = pull.recv(ZMQ.NOBLOCK);
+		if (frame == null) {
+			return null;
+		}
+
+		List<byte[]> parts = new ArrayList<byte[]>();
+		parts.add(frame);
+		while (pull.hasReceiveMore()) {
+			parts.add(pull.recv(0));
+		}
+		return parts;
+	}
+
+	private void append(List<byte[]> parts) {
+		try {
+			spool.append(parts);
+		} catch (Exception e) {
+			logger.error("Unable to append message to ØMQ spool", e);
+			processor.reject("Unable to spool message [" + e.getMessage() + "]");
+			return;
+		}
+
+		Thread drainer = drainerThread;
+		if (drainer != null) {
+			LockSupport.unpark(drainer);
+		}
+	}
+
+	private void publishErrors(ZMQ.Socket errorsSocket) {
+		byte[] error;
+		while ((error = processor.pollError()) != null) {
+			if (errorsSocket != null) {
+				errorsSocket.send(error, 0);
+			}
+		}
+	}
+
+	/**
+	 * Reads the spooled messages and sends them to ES. The checkpoint is moved
+	 * forward when bulk requests are acknowledged.
+	 */
+	private class SpoolDrainer implements Runnable {
+
+		@Override
+		public void run() {
+			drainerThread = Thread.currentThread();
+
+			if (logger.isDebugEnabled()) {
+				logger.debug("ØMQ spool drainer started");
+			}
+
+			ZMQSpool.Position checkpoint = null;
+			long pollTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(pollTimeoutMillis);
+			long maintained = System.nanoTime();
+
+			while (isRunning.get()) {
+				try {
+					List<byte[]> frames = spool.read();
+					if (frames != null) {
+						processor.add(frames);
+						if (processor.needsFlush(false)) {
+							processor.flush(spool.position());
+						}
+						// The spool may never be empty under a steady load:
+						// failed bulks are retried and the checkpoint is moved
+						// at least once per poll timeout
+						if (System.nanoTime() - maintained < pollTimeoutNanos) {
+							continue;
+						}
+
+					} else if (processor.needsFlush(true)) {
+						processor.flush(spool.position());
+					}
+					processor.retry();
+					checkpoint = checkpoint(checkpoint);
+					maintained = System.nanoTime();
+
+					if (frames == null) {
+						LockSupport.parkNanos(pollTimeoutNanos);
+					}
+
+				} catch (Exception e) {
+					logger.error("Exception when draining ØMQ spool", e);
+					LockSupport.parkNanos(processor.retryInterval.nanos());
+				}
+			}
+
+			try {
+				// Sends the current bulk request, the remaining messages will
+				// be sent after the restart
+				processor.flush(spool.position());
+				if (!processor.awaitBulks(10, TimeUnit.SECONDS)) {
+					logger.warn("Timeout when waiting for ØMQ spool bulk requests");
+				}
+				checkpoint(checkpoint);
+				spool.force();
+
+			} catch (Exception e) {
+				logger.error("Exception when closing ØMQ spool", e);
+			}
+
+			if (logger.isDebugEnabled()) {
+				logger.debug("ØMQ spool drainer stopped");
+			}
+			waitForClose.countDown();
+		}
+
+		private ZMQSpool.Position checkpoint(ZMQSpool.Position last) throws IOException {
+			ZMQSpool.Position position = (ZMQSpool.Position) processor.acknowledged();
+			if ((position == null) && processor.idle()) {
+				// Everything has been read is acknowledged
+				position = spool.position();
+			}
+
+			if ((position != null) && !position.equals(last)) {
+				spool.checkpoint(position);
+				return position;
+			}
+			return last;
+		}
+	}
+}
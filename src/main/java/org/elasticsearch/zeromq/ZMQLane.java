@@ -0,0 +1,148 @@
+/*
+ * Licensed to Elastic Search and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Elastic Search licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.zeromq;
+
+import java.util.List;
+
+import org.elasticsearch.common.Unicode;
+
+/**
+ * Classes of requests, each one handled by its own workers so that heavy
+ * requests do not delay the cheap ones.
+ *
+ * @author tlrx
+ */
+public enum ZMQLane {
+
+	/**
+	 * Requests that match no other lane, or whose lane has no worker
+	 */
+	DEFAULT,
+
+	/**
+	 * Search, count, multi search, more like this...
+	 */
+	SEARCH,
+
+	/**
+	 * Bulk, index, update and delete requests
+	 */
+	INDEX,
+
+	/**
+	 * Get and multi get requests
+	 */
+	GET,
+
+	/**
+	 * Cluster, nodes and indices administration requests
+	 */
+	ADMIN;
+
+	private static final byte SEPARATOR = (byte) ZMQSocket.SEPARATOR.charAt(0);
+
+	private static final ZMQLane[] LANES = values();
+
+	public String lowercase() {
+		return name().toLowerCase();
+	}
+
+	public static ZMQLane fromId(int id) {
+		return ((id >= 0) && (id < LANES.length)) ? LANES[id] : DEFAULT;
+	}
+
+	/**
+	 * Classifies a raw message (envelope and content frames)
+	 */
+	public static ZMQLane classify(List<byte[]> message) {
+		int contentStart = ZMQProtocol.contentStart(message);
+		int version = ZMQProtocol.version(message.size() - contentStart);
+
+		if (version == ZMQProtocol.V2) {
+			byte[] method = message.get(contentStart);
+			byte[] uri = message.get(contentStart + 1);
+			return classify(Unicode.fromBytes(method, 0, method.length), Unicode.fromBytes(uri, 0, uri.length));
+		}
+
+		if (version == ZMQProtocol.V1) {
+			byte[] payload = message.get(contentStart);
+			int first = indexOf(payload, 0);
+			if (first > 0) {
+				int second = indexOf(payload, first + 1);
+				int end = (second < 0) ? payload.length : second;
+				return classify(Unicode.fromBytes(payload, 0, first), Unicode.fromBytes(payload, first + 1, end - first - 1));
+			}
+		}
+		return DEFAULT;
+	}
+
+	/**
+	 * Classifies a request from its method and URI
+	 */
+	public static ZMQLane classify(String method, String uri) {
+		int query = uri.indexOf('?');
+		String[] segments = ZMQRestRequest.segments((query >= 0) ? uri.substring(0, query) : uri);
+
+		// Endpoints (segments starting with '_'), the other ones are
+		// administration endpoints (ex: _refresh, _mapping, _settings)
+		for (String segment : segments) {
+			if ("_search".equals(segment) || "_msearch".equals(segment) || "_count".equals(segment) || "_mlt".equals(segment)
+					|| "_percolate".equals(segment) || "_validate".equals(segment)) {
+				return SEARCH;
+			}
+			if ("_bulk".equals(segment) || "_update".equals(segment) || "_create".equals(segment) || "_query".equals(segment)) {
+				return INDEX;
+			}
+			if ("_mget".equals(segment) || "_source".equals(segment)) {
+				return GET;
+			}
+		}
+		for (String segment : segments) {
+			if (segment.startsWith("_")) {
+				return ADMIN;
+			}
+		}
+
+		if (segments.length == 0) {
+			return ADMIN;
+		}
+
+		// Document requests: /index/type/id or /index/type. Methods are not
+		// case sensitive, like in ZMQRestRequest
+		if ((segments.length == 3) && ("GET".equalsIgnoreCase(method) || "HEAD".equalsIgnoreCase(method))) {
+			return GET;
+		}
+		if ((segments.length == 2) || (segments.length == 3)) {
+			if ("PUT".equalsIgnoreCase(method) || "POST".equalsIgnoreCase(method) || "DELETE".equalsIgnoreCase(method)) {
+				return INDEX;
+			}
+		}
+		return DEFAULT;
+	}
+
+	private static int indexOf(byte[] payload, int from) {
+		for (int i = from; i < payload.length; i++) {
+			if (payload[i] == SEPARATOR) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,280 @@
+/*
+ * Licensed to Elastic Search and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Elastic Search licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.zeromq;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.Unicode;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.RestStatus;
+
+/**
+ * Helper methods for the message formats supported by the transport.
+ * <p>
+ * A message starts with the envelope frames (client identities added by the
+ * ROUTER sockets and any frame sent by the client before an empty delimiter
+ * frame), which are sent back untouched with the reply. The content frames
+ * follow:
+ * <ul>
+ * <li>1 frame, protocol V1: <code>METHOD|URI|CONTENT</code>, replied with a
+ * single <code>STATUS|STATUS NAME|CONTENT</code> frame</li>
+ * <li>3 or 4 frames, protocol V2: method, URI, optional headers and content
+ * frames, replied with a binary status code frame and a content frame. The
+ * reply has a headers frame between them (<code>Content-Type</code> and
+ * <code>Content-Encoding</code>) when the request has an <code>Accept</code> or
+ * an <code>Accept-Encoding</code> header (see {@link ZMQCompression}).</li>
+ * </ul>
+ * Protocol V2 messages must be preceded by an empty delimiter frame, otherwise
+ * all the frames but the last one are considered as envelope.
+ * <p>
+ * Clients that pipeline requests on a single DEALER socket can send a
+ * correlation ID frame (any non empty frame) before the delimiter frame, or
+ * before the single V1 frame: as part of the envelope, it is echoed back
+ * unchanged with the reply. Replies are sent in completion order, which may
+ * differ from the order of the requests.
+ * <p>
+ * Protocol V2 requests can carry a deadline in their headers, either relative
+ * to the reception of the request (<code>X-Timeout</code>, a time value like
+ * <code>200ms</code> or a number of milliseconds) or absolute
+ * (<code>X-Deadline</code>, in milliseconds since the epoch). Requests are
+ * dropped without reply once their deadline is passed.
+ *
+ * @author tlrx
+ */
+public final class ZMQProtocol {
+
+	public static final int V1 = 1;
+
+	public static final int V2 = 2;
+
+	public static final char HEADER_SEPARATOR = ':';
+
+	public static final char HEADERS_SEPARATOR = '\n';
+
+	public static final String TIMEOUT_HEADER = "x-timeout";
+
+	public static final String DEADLINE_HEADER = "x-deadline";
+
+	public static final String CONTENT_TYPE_HEADER = "content-type";
+
+	public static final String ACCEPT_HEADER = "accept";
+
+	/**
+	 * Status of the requests rejected by the transport because of the load,
+	 * not a {@link RestStatus} in this version of Elasticsearch
+	 */
+	public static final int TOO_MANY_REQUESTS = 429;
+
+	public static final String TOO_MANY_REQUESTS_REASON = "TOO_MANY_REQUESTS";
+
+	/**
+	 * Content types of the contents Elasticsearch can generate, as expected by
+	 * XContentType.fromRestContentType()
+	 */
+	private static final String[] CONTENT_TYPES = { "application/json", "application/smile", "application/yaml" };
+
+	private static final byte[][] STATUS_FRAMES;
+
+	static {
+		RestStatus[] statuses = RestStatus.values();
+		STATUS_FRAMES = new byte[statuses.length][];
+		for (RestStatus status : statuses) {
+			STATUS_FRAMES[status.ordinal()] = encodeStatus(status.getStatus());
+		}
+	}
+
+	private ZMQProtocol() {
+	}
+
+	/**
+	 * @return the index of the first content frame of the message, all the
+	 *         frames before are part of the envelope
+	 */
+	public static int contentStart(List<byte[]> parts) {
+		for (int i = 0; i < parts.size(); i++) {
+			if (parts.get(i).length == 0) {
+				return i + 1;
+			}
+		}
+		return parts.size() - 1;
+	}
+
+	/**
+	 * @return the protocol version for the given number of content frames, or
+	 *         -1 if no protocol matches
+	 */
+	public static int version(int contentFrames) {
+		if (contentFrames == 1) {
+			return V1;
+		}
+		if ((contentFrames == 3) || (contentFrames == 4)) {
+			return V2;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the protocol version of the reply to a message. A message that
+	 *         matches no protocol is answered in V2 if its content follows an
+	 *         empty delimiter frame (only V2 clients have to send one), in V1
+	 *         otherwise.
+	 */
+	public static int replyVersion(List<byte[]> parts, int contentStart) {
+		int version = version(parts.size() - contentStart);
+		if (version > 0) {
+			return version;
+		}
+		return ((contentStart > 0) && (parts.get(contentStart - 1).length == 0)) ? V2 : V1;
+	}
+
+	/**
+	 * @return the status frame (2 bytes, big endian) of a protocol V2 reply.
+	 *         The returned array is shared and must not be modified.
+	 */
+	public static byte[] statusFrame(RestStatus status) {
+		return STATUS_FRAMES[status.ordinal()];
+	}
+
+	/**
+	 * @return the reply frames of an error, with a JSON content like the ones
+	 *         of ES. The error message is not escaped.
+	 */
+	public static byte[][] errorFrames(int protocol, RestStatus status, String error) {
+		return errorFrames(protocol, status.getStatus(), status.name(), error);
+	}
+
+	/**
+	 * @return the reply frames of an error whose status code has no
+	 *         {@link RestStatus} (ex: {@link #TOO_MANY_REQUESTS}), the reason
+	 *         is the status name of the protocol V1 status line
+	 */
+	public static byte[][] errorFrames(int protocol, int status, String reason, String error) {
+		String content = "{\"error\":\"" + error + "\",\"status\":" + status + "}";
+
+		if (protocol == V2) {
+			return new byte[][] { encodeStatus(status), Unicode.fromStringAsBytes(content) };
+		}
+		return new byte[][] { Unicode.fromStringAsBytes(status + ZMQSocket.SEPARATOR + reason + ZMQSocket.SEPARATOR + content) };
+	}
+
+	/**
+	 * @return the deadline of a request, comparable to
+	 *         {@link System#nanoTime()}, or 0 if the request has no (valid)
+	 *         deadline header
+	 * @param now
+	 *            the reception time of the request
+	 */
+	public static long deadline(List<byte[]> message, long now) {
+		int contentStart = contentStart(message);
+		if (message.size() - contentStart != 4) {
+			return 0;
+		}
+
+		Map<String, String> headers = decodeHeaders(message.get(contentStart + 2));
+		try {
+			String timeout = headers.get(TIMEOUT_HEADER);
+			if (timeout != null) {
+				return now + Math.max(0, TimeValue.parseTimeValue(timeout, null).nanos());
+			}
+			String deadline = headers.get(DEADLINE_HEADER);
+			if (deadline != null) {
+				return now + TimeUnit.MILLISECONDS.toNanos(Long.parseLong(deadline) - System.currentTimeMillis());
+			}
+		} catch (RuntimeException e) {
+			// Invalid header, the request has no deadline
+		}
+		return 0;
+	}
+
+	public static byte[] encodeStatus(int status) {
+		return new byte[] { (byte) (status >>> 8), (byte) status };
+	}
+
+	public static int decodeStatus(byte[] frame) {
+		return ((frame[0] & 0xFF) << 8) | (frame[1] & 0xFF);
+	}
+
+	/**
+	 * Parses a headers frame made of <code>Name: value</code> lines. Header
+	 * names are lower cased.
+	 */
+	public static Map<String, String> decodeHeaders(byte[] frame) {
+		Map<String, String> headers = new HashMap<String, String>();
+		if ((frame == null) || (frame.length == 0)) {
+			return headers;
+		}
+
+		String s = Unicode.fromBytes(frame);
+		int start = 0;
+		while (start < s.length()) {
+			int end = s.indexOf(HEADERS_SEPARATOR, start);
+			if (end < 0) {
+				end = s.length();
+			}
+			int sep = s.indexOf(HEADER_SEPARATOR, start);
+			if ((sep > start) && (sep < end)) {
+				headers.put(s.substring(start, sep).trim().toLowerCase(), s.substring(sep + 1, end).trim());
+			}
+			start = end + 1;
+		}
+		return headers;
+	}
+
+	/**
+	 * @return the first content type of an <code>Accept</code> header that
+	 *         Elasticsearch can generate (JSON, SMILE or YAML, parameters and
+	 *         quality values are ignored), or null if none matches
+	 */
+	public static String acceptedContentType(String accept) {
+		if (accept == null) {
+			return null;
+		}
+		for (String type : accept.split(",")) {
+			int params = type.indexOf(';');
+			if (params >= 0) {
+				type = type.substring(0, params);
+			}
+			type = type.trim().toLowerCase();
+			for (String contentType : CONTENT_TYPES) {
+				if (contentType.equals(type)) {
+					return contentType;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Builds a headers frame made of <code>Name: value</code> lines
+	 */
+	public static byte[] encodeHeaders(Map<String, String> headers) {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, String> header : headers.entrySet()) {
+			if (sb.length() > 0) {
+				sb.append(HEADERS_SEPARATOR);
+			}
+			sb.append(header.getKey()).append(HEADER_SEPARATOR).append(' ').append(header.getValue());
+		}
+		return Unicode.fromStringAsBytes(sb.toString());
+	}
+}
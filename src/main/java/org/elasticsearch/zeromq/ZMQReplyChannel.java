@@ -0,0 +1,74 @@
+/*
+ * Licensed to Elastic Search and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Elastic Search licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.zeromq;
+
+import java.util.List;
+
+import org.zeromq.ZMQ;
+
+/**
+ * Thread safe channel used to push replies back to the thread that owns a
+ * {@link ZMQSocket}. ØMQ sockets must not be shared between threads, so every
+ * send is serialized and goes through an inproc PUSH socket; the owning
+ * thread forwards the frames to the broker.
+ *
+ * @author tlrx
+ */
+public class ZMQReplyChannel {
+
+	private final ZMQ.Socket push;
+
+	private boolean closed = false;
+
+	/**
+	 * Must be created once the PULL socket has been bound to the given
+	 * address (inproc transport requires bind before connect).
+	 */
+	public ZMQReplyChannel(ZMQ.Context context, String binding) {
+		this.push = context.socket(ZMQ.PUSH);
+		this.push.setLinger(0);
+		this.push.connect(binding);
+	}
+
+	/**
+	 * Sends the envelope frames followed by the reply frames.
+	 *
+	 * @return false if the channel is already closed
+	 */
+	public synchronized boolean send(List<byte[]> envelope, byte[]... reply) {
+		if (closed) {
+			return false;
+		}
+		for (byte[] frame : envelope) {
+			push.send(frame, ZMQ.SNDMORE);
+		}
+		for (int i = 0; i < reply.length; i++) {
+			push.send(reply[i], (i < reply.length - 1) ? ZMQ.SNDMORE : 0);
+		}
+		return true;
+	}
+
+	public synchronized void close() {
+		if (!closed) {
+			closed = true;
+			push.close();
+		}
+	}
+}
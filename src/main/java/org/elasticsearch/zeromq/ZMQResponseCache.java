@@ -0,0 +1,467 @@
+/*
+ * Licensed to Elastic Search and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Elastic Search licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.zeromq;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.RestRequest.Method;
+import org.elasticsearch.rest.RestStatus;
+
+/**
+ * Cache of the reply frames of read requests (searches, counts, multi gets
+ * and gets of a document), checked by the workers before dispatching a
+ * request to ES.
+ * <p>
+ * Replies are keyed on the method, the URI, the content and the headers that
+ * change the reply format. The cache is bounded in bytes with LRU eviction,
+ * and the entries expire after a TTL. Each write request that passes through
+ * the transport invalidates the entries of the indices in its path (all the
+ * entries if its path has no index, ex: <code>_bulk</code>), when it is
+ * dispatched and again when ES has applied it. Writes sent by other means, or
+ * through an alias of the cached index, are only seen when the entry expires.
+ * <p>
+ * Settings: <code>zeromq.cache.enabled</code> (false by default),
+ * <code>zeromq.cache.size</code> (10mb) and <code>zeromq.cache.ttl</code> (1s,
+ * the default refresh interval of the indices).
+ *
+ * @author tlrx
+ */
+public class ZMQResponseCache {
+
+	private static final String[] READ_ENDPOINTS = { "/_search", "/_count", "/_mget", "/_msearch" };
+
+	private final boolean enabled;
+
+	private final long maxBytes;
+
+	private final long ttl;
+
+	/**
+	 * Entries in access order, guarded by this
+	 */
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(64, 0.75f, true);
+
+	private long bytes;
+
+	/**
+	 * Number of writes per index
+	 */
+	private final ConcurrentMap<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+
+	/**
+	 * Number of writes to unknown indices (ex: bulk requests)
+	 */
+	private final AtomicLong allGeneration = new AtomicLong();
+
+	/**
+	 * Number of writes, to any index
+	 */
+	private final AtomicLong anyGeneration = new AtomicLong();
+
+	private final CounterMetric hits = new CounterMetric();
+
+	private final CounterMetric misses = new CounterMetric();
+
+	private final CounterMetric evictions = new CounterMetric();
+
+	private final CounterMetric invalidations = new CounterMetric();
+
+	public ZMQResponseCache(Settings settings) {
+		this.enabled = settings.getAsBoolean("zeromq.cache.enabled", false);
+		this.maxBytes = settings.getAsBytesSize("zeromq.cache.size", new ByteSizeValue(10, ByteSizeUnit.MB)).bytes();
+		this.ttl = settings.getAsTime("zeromq.cache.ttl", TimeValue.timeValueSeconds(1)).nanos();
+	}
+
+	public boolean enabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return the key of the request if its reply can be cached, null
+	 *         otherwise
+	 */
+	public Key key(ZMQRestRequest request) {
+		if (!enabled || !isRead(request)) {
+			return null;
+		}
+		return readKey(request);
+	}
+
+	/**
+	 * @return the key of a read request, whether the cache is enabled or not
+	 */
+	Key readKey(ZMQRestRequest request) {
+		// Multi gets and searches can read other indices than the ones of
+		// their path
+		String path = request.rawPath();
+		String[] indices = (path.endsWith("/_mget") || path.endsWith("/_msearch")) ? null : indices(path);
+		return new Key(request, indices, generation(indices));
+	}
+
+	/**
+	 * @return the cached reply frames, or null if the reply is not cached or
+	 *         is stale. The frames are shared and must not be modified.
+	 */
+	public byte[][] get(Key key) {
+		long now = System.nanoTime();
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				if ((now - entry.expires < 0) && (entry.key.generation == generation(entry.key.indices))) {
+					hits.inc();
+					return entry.frames;
+				}
+				remove(key);
+			}
+		}
+		misses.inc();
+		return null;
+	}
+
+	/**
+	 * Caches the reply of a request, unless the request failed or an index it
+	 * reads has been written since the request was received
+	 */
+	public void put(Key key, RestStatus status, byte[][] frames) {
+		if ((status != RestStatus.OK) || (key.generation != generation(key.indices))) {
+			return;
+		}
+		long size = key.bytes;
+		for (byte[] frame : frames) {
+			size += frame.length;
+		}
+		if (size > maxBytes) {
+			return;
+		}
+
+		Key stored = key.detach();
+		Entry entry = new Entry(stored, frames, size, System.nanoTime() + ttl);
+		synchronized (this) {
+			remove(stored);
+			entries.put(stored, entry);
+			bytes += size;
+
+			Iterator<Entry> eldest = entries.values().iterator();
+			while ((bytes > maxBytes) && eldest.hasNext()) {
+				bytes -= eldest.next().bytes;
+				eldest.remove();
+				evictions.inc();
+			}
+		}
+	}
+
+	/**
+	 * Invalidates the entries of the indices written by the request, if it
+	 * is a write request. Called for all the requests passed to ES, even if
+	 * the cache is disabled: the generations of the indices also tell if a
+	 * read request can share the reply of another one (see
+	 * {@link ZMQRestImpl}).
+	 */
+	public void invalidate(ZMQRestRequest request) {
+		if (!isWrite(request)) {
+			return;
+		}
+		invalidations.inc();
+		increment(indices(request.rawPath()));
+	}
+
+	/**
+	 * Invalidates again the entries of the indices written by a write request,
+	 * once ES has applied it: a read request received after the write was
+	 * dispatched may have got, and cached, the previous content.
+	 */
+	public void applied(ZMQRestRequest request) {
+		if (isWrite(request)) {
+			increment(indices(request.rawPath()));
+		}
+	}
+
+	private void increment(String[] indices) {
+		if (indices == null) {
+			allGeneration.incrementAndGet();
+		} else {
+			for (String index : indices) {
+				generation(index).incrementAndGet();
+			}
+		}
+		anyGeneration.incrementAndGet();
+	}
+
+	private void remove(Key key) {
+		Entry entry = entries.remove(key);
+		if (entry != null) {
+			bytes -= entry.bytes;
+		}
+	}
+
+	/**
+	 * @return a number that changes when one of the indices is written
+	 */
+	long generation(String[] indices) {
+		if (indices == null) {
+			return anyGeneration.get();
+		}
+		long generation = allGeneration.get();
+		for (String index : indices) {
+			generation += generation(index).get();
+		}
+		return generation;
+	}
+
+	private AtomicLong generation(String index) {
+		AtomicLong generation = generations.get(index);
+		if (generation == null) {
+			AtomicLong previous = generations.putIfAbsent(index, generation = new AtomicLong());
+			if (previous != null) {
+				generation = previous;
+			}
+		}
+		return generation;
+	}
+
+	/**
+	 * @return true if the reply of the request can be cached: searches,
+	 *         counts and multi gets/searches (without scroll), and gets of a
+	 *         document
+	 */
+	static boolean isRead(ZMQRestRequest request) {
+		Method method = request.method();
+		String path = request.rawPath();
+
+		if ((method == Method.GET) || (method == Method.POST)) {
+			for (String endpoint : READ_ENDPOINTS) {
+				if (path.endsWith(endpoint)) {
+					return !request.hasParam("scroll");
+				}
+			}
+		}
+		if (method == Method.GET) {
+			// GET /index/type/id
+			String[] segments = ZMQRestRequest.segments(path);
+			return (segments.length == 3) && !segments[0].startsWith("_") && !segments[1].startsWith("_") && !segments[2].startsWith("_");
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the request changes the content of the indices, or
+	 *         their visibility (refresh)
+	 */
+	static boolean isWrite(ZMQRestRequest request) {
+		if (isRead(request)) {
+			return false;
+		}
+		Method method = request.method();
+		return ((method != Method.GET) && (method != Method.HEAD)) || request.rawPath().endsWith("/_refresh");
+	}
+
+	/**
+	 * @return the indices of a path, or null if the path is not specific to
+	 *         some indices
+	 */
+	static String[] indices(String path) {
+		String[] segments = ZMQRestRequest.segments(path);
+		if ((segments.length == 0) || segments[0].startsWith("_") || (segments[0].indexOf('*') >= 0) || path.contains("/_bulk")) {
+			return null;
+		}
+		return segments[0].split(",");
+	}
+
+	public long hits() {
+		return hits.count();
+	}
+
+	public long misses() {
+		return misses.count();
+	}
+
+	public long evictions() {
+		return evictions.count();
+	}
+
+	public long invalidations() {
+		return invalidations.count();
+	}
+
+	public synchronized int entries() {
+		return entries.size();
+	}
+
+	public synchronized long bytes() {
+		return bytes;
+	}
+
+	/**
+	 * Key of a cached reply: the request and the headers that change the
+	 * format of the reply
+	 */
+	public static final class Key {
+
+		private final Method method;
+
+		private final String uri;
+
+		private final int protocol;
+
+		private final String contentType;
+
+		private final String accept;
+
+		private final String acceptEncoding;
+
+		/**
+		 * Content of the request, shared with the request until the key is
+		 * detached
+		 */
+		private final byte[] content;
+
+		private final int offset;
+
+		private final int length;
+
+		private final int hash;
+
+		final String[] indices;
+
+		/**
+		 * Generation of the indices when the request is received
+		 */
+		final long generation;
+
+		final long bytes;
+
+		Key(ZMQRestRequest request, String[] indices, long generation) {
+			this.method = request.method();
+			this.uri = request.uri();
+			this.protocol = request.protocol();
+			this.contentType = request.header(ZMQProtocol.CONTENT_TYPE_HEADER);
+			this.accept = request.header(ZMQProtocol.ACCEPT_HEADER);
+			this.acceptEncoding = request.header(ZMQCompression.ACCEPT_ENCODING_HEADER);
+			this.content = request.contentByteArray();
+			this.offset = request.contentByteArrayOffset();
+			this.length = request.contentLength();
+			this.indices = indices;
+			this.generation = generation;
+			this.bytes = (uri.length() * 2) + length + 64;
+
+			int h = method.hashCode();
+			h = (31 * h) + uri.hashCode();
+			h = (31 * h) + protocol;
+			h = (31 * h) + ((contentType != null) ? contentType.hashCode() : 0);
+			h = (31 * h) + ((accept != null) ? accept.hashCode() : 0);
+			h = (31 * h) + ((acceptEncoding != null) ? acceptEncoding.hashCode() : 0);
+			for (int i = offset; i < offset + length; i++) {
+				h = (31 * h) + content[i];
+			}
+			this.hash = h;
+		}
+
+		private Key(Key key) {
+			this.method = key.method;
+			this.uri = key.uri;
+			this.protocol = key.protocol;
+			this.contentType = key.contentType;
+			this.accept = key.accept;
+			this.acceptEncoding = key.acceptEncoding;
+			this.content = Arrays.copyOfRange(key.content, key.offset, key.offset + key.length);
+			this.offset = 0;
+			this.length = key.length;
+			this.indices = key.indices;
+			this.generation = key.generation;
+			this.bytes = key.bytes;
+			this.hash = key.hash;
+		}
+
+		/**
+		 * @return a key that does not share the content of the request, to
+		 *         be kept once the request is replied
+		 */
+		Key detach() {
+			if ((offset == 0) && (length == content.length)) {
+				return this;
+			}
+			return new Key(this);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return (hash == other.hash) && (method == other.method) && (protocol == other.protocol) && uri.equals(other.uri)
+					&& equals(contentType, other.contentType) && equals(accept, other.accept)
+					&& equals(acceptEncoding, other.acceptEncoding)
+					&& equals(content, offset, length, other.content, other.offset, other.length);
+		}
+
+		private static boolean equals(byte[] a, int aOffset, int aLength, byte[] b, int bOffset, int bLength) {
+			if (aLength != bLength) {
+				return false;
+			}
+			for (int i = 0; i < aLength; i++) {
+				if (a[aOffset + i] != b[bOffset + i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static boolean equals(String a, String b) {
+			return (a == null) ? (b == null) : a.equals(b);
+		}
+	}
+
+	private static final class Entry {
+
+		final Key key;
+
+		final byte[][] frames;
+
+		final long bytes;
+
+		final long expires;
+
+		Entry(Key key, byte[][] frames, long bytes, long expires) {
+			this.key = key;
+			this.frames = frames;
+			this.bytes = bytes;
+			this.expires = expires;
+		}
+	}
+}
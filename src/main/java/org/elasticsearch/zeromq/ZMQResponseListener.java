@@ -0,0 +1,34 @@
+/*
+ * Licensed to Elastic Search and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Elastic Search licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.zeromq;
+
+/**
+ * Callback notified when Elasticsearch has produced the response of a
+ * dispatched {@link ZMQRestRequest}. Methods are called by the thread that
+ * executed the request, which is usually not the ØMQ worker thread.
+ *
+ * @author tlrx
+ */
+public interface ZMQResponseListener {
+
+	void onResponse(ZMQRestResponse response);
+
+	void onFailure(Throwable e);
+}
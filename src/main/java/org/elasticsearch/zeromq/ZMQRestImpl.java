@@ -21,15 +21,23 @@ package org.elasticsearch.zeromq;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.elasticsearch.common.component.AbstractComponent;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.metrics.CounterMetric;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.rest.RestChannel;
 import org.elasticsearch.rest.RestController;
 import org.elasticsearch.rest.RestResponse;
+import org.elasticsearch.zeromq.exception.ZMQTransportException;
 import org.zeromq.ZMQException;
 
 /**
@@ -39,57 +47,345 @@ public class ZMQRestImpl extends AbstractComponent {
 
 	private final RestController restController;
 
+	/**
+	 * Minimum size of the contents compressed for the clients that accept it,
+	 * -1 to never compress
+	 */
+	private final long compressionThreshold;
+
+	/**
+	 * Maximum length of the compressed contents of the requests, once
+	 * decompressed
+	 */
+	private final long maxDecompressedLength;
+
+	private final ZMQResponseCache cache;
+
+	/**
+	 * True if identical read requests in progress share the same dispatch
+	 */
+	private final boolean coalesce;
+
+	/**
+	 * Read requests in progress, when coalescing is enabled
+	 */
+	private final ConcurrentMap<ZMQResponseCache.Key, Flight> flights = new ConcurrentHashMap<ZMQResponseCache.Key, Flight>();
+
+	private final CounterMetric coalesced = new CounterMetric();
+
+	/**
+	 * Batches the gets of a document into multi gets, null if disabled
+	 */
+	private final ZMQGetBatcher batcher;
+
 	@Inject
 	public ZMQRestImpl(Settings settings, RestController restController) {
 		super(settings);
 		this.restController = restController;
+		this.compressionThreshold = settings.getAsBytesSize("zeromq.compression.threshold", new ByteSizeValue(1, ByteSizeUnit.KB)).bytes();
+		this.maxDecompressedLength = settings.getAsBytesSize("zeromq.compression.max_size",
+				settings.getAsBytesSize("http.max_content_length", new ByteSizeValue(100, ByteSizeUnit.MB))).bytes();
+		this.cache = new ZMQResponseCache(settings);
+		this.coalesce = settings.getAsBoolean("zeromq.coalesce.enabled", false);
+		this.batcher = settings.getAsBoolean("zeromq.get_batch.enabled", false) ? new ZMQGetBatcher(logger, settings, this) : null;
+	}
+
+	/**
+	 * @return the maximum length of a compressed request content once
+	 *         decompressed
+	 */
+	public long maxDecompressedLength() {
+		return maxDecompressedLength;
+	}
+
+	/**
+	 * @return the cache of the replies, invalidated by the write requests
+	 *         dispatched by this client
+	 */
+	public ZMQResponseCache cache() {
+		return cache;
+	}
+
+	public boolean coalesce() {
+		return coalesce;
 	}
 
-	public ZMQRestResponse process(ZMQRestRequest request){
+	/**
+	 * @return the number of requests that shared the dispatch of an
+	 *         identical request
+	 */
+	public long coalesced() {
+		return coalesced.count();
+	}
+
+	/**
+	 * @return the number of read requests being dispatched, when coalescing
+	 *         is enabled
+	 */
+	public int flights() {
+		return flights.size();
+	}
+
+	/**
+	 * @return the batcher of the gets, to be run by a dedicated thread, or
+	 *         null if get batching is disabled
+	 */
+	public ZMQGetBatcher batcher() {
+		return batcher;
+	}
+
+	/**
+	 * Dispatches the request to Elasticsearch and waits for the response.
+	 */
+	public ZMQRestResponse process(final ZMQRestRequest request){
 		
 		final CountDownLatch latch = new CountDownLatch(1);
         final AtomicReference<ZMQRestResponse> ref = new AtomicReference<ZMQRestResponse>();
-        
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		dispatch(request, new ZMQResponseListener() {
+
+			@Override
+			public void onResponse(ZMQRestResponse response) {
+				// Assembles the frames while the content is still valid
+				response.frames(request.protocol());
+				if (request.trace() != null) {
+					request.trace().mark(ZMQTrace.ASSEMBLED);
+				}
+				ref.set(response);
+				latch.countDown();
+			}
+
+			@Override
+			public void onFailure(Throwable e) {
+				failure.set(e);
+				latch.countDown();
+			}
+		});
+		
+		try {
+            latch.await();
+        } catch (Exception e) {
+            throw new ZMQException("failed to generate response", 0);
+        }
+
+        if (failure.get() != null) {
+            throw new ZMQTransportException("failed to generate response", failure.get());
+        }
+        return ref.get();
+	}
+
+	/**
+	 * Dispatches the request to Elasticsearch and returns immediately, the
+	 * listener is notified by the thread that sends the response. The content
+	 * of the response may be reused by this thread once the listener returns.
+	 */
+	public void dispatch(final ZMQRestRequest request, final ZMQResponseListener listener){
+
+		if (ZMQResponseCache.isWrite(request)) {
+			cache.invalidate(request);
+			execute(request, new WriteListener(request, listener));
+			return;
+		}
+
+		if (!coalesce || !ZMQResponseCache.isRead(request)) {
+			execute(request, listener);
+			return;
+		}
+
+		// Identical read requests in progress share the same dispatch, unless
+		// an index they read has been written since the first one. The key
+		// only copies the content of the request once it registers a flight.
+		ZMQResponseCache.Key key = cache.readKey(request);
+		Flight current = flights.get(key);
+		if (current == null) {
+			Flight flight = new Flight(key.detach(), request, listener);
+			current = flights.putIfAbsent(flight.key, flight);
+			if (current == null) {
+				try {
+					execute(request, flight);
+				} catch (RuntimeException e) {
+					// The caller handles the failure of its own request
+					flight.abort(e);
+					throw e;
+				}
+				return;
+			}
+		}
+
+		if (current.join(request, listener, key.generation)) {
+			coalesced.inc();
+		} else {
+			execute(request, listener);
+		}
+	}
+
+	private void execute(ZMQRestRequest request, ZMQResponseListener listener){
+		if ((batcher == null) || !batcher.add(request, listener)) {
+			send(request, listener);
+		}
+	}
+
+	/**
+	 * Dispatches the request to the REST controller, without batching
+	 */
+	void send(final ZMQRestRequest request, final ZMQResponseListener listener){
+
 		this.restController.dispatchRequest(request, new RestChannel() {
 			
 			@Override
 			public void sendResponse(RestResponse response) {
+				if (request.trace() != null) {
+					request.trace().mark(ZMQTrace.RESPONDED);
+				}
+				ZMQRestResponse zmqResponse = null;
 				try {
 					if(logger.isTraceEnabled()){
 						logger.info("Response to ØMQ client: {}", new String(response.content()));	
 					}
-					ref.set(convert(response));
+					zmqResponse = convert(request, response);
 				} catch (IOException e) {
-					// ignore
+					listener.onFailure(e);
+					return;
 				}
-				latch.countDown();
+				listener.onResponse(zmqResponse);
 			}
 		});
-		
-		try {
-            latch.await();
-            return ref.get();
-        } catch (Exception e) {
-            throw new ZMQException("failed to generate response", 0);
-        }
 	}
 	
-	private ZMQRestResponse convert(RestResponse response) throws IOException {
+	/**
+	 * Invalidates the indices written by a request once more when ES has
+	 * applied it, before the reply is sent
+	 */
+	private class WriteListener implements ZMQResponseListener {
+
+		private final ZMQRestRequest request;
+
+		private final ZMQResponseListener listener;
+
+		WriteListener(ZMQRestRequest request, ZMQResponseListener listener) {
+			this.request = request;
+			this.listener = listener;
+		}
+
+		@Override
+		public void onResponse(ZMQRestResponse response) {
+			cache.applied(request);
+			listener.onResponse(response);
+		}
+
+		@Override
+		public void onFailure(Throwable e) {
+			cache.applied(request);
+			listener.onFailure(e);
+		}
+	}
+
+	/**
+	 * A read request being dispatched, and the listeners of the identical
+	 * requests received meanwhile. The response is passed to all the
+	 * listeners by the thread that sends it, before its content is reused.
+	 */
+	private class Flight implements ZMQResponseListener {
+
+		private final ZMQResponseCache.Key key;
+
+		/**
+		 * The first request and listener are the ones of the dispatched
+		 * request
+		 */
+		private final List<ZMQRestRequest> requests = new ArrayList<ZMQRestRequest>(2);
+
+		private final List<ZMQResponseListener> listeners = new ArrayList<ZMQResponseListener>(2);
+
+		private boolean done = false;
+
+		Flight(ZMQResponseCache.Key key, ZMQRestRequest request, ZMQResponseListener listener) {
+			this.key = key;
+			this.requests.add(request);
+			this.listeners.add(listener);
+		}
+
+		/**
+		 * @return false if the response is already sent, or if the indices
+		 *         have been written since the request was dispatched
+		 */
+		synchronized boolean join(ZMQRestRequest request, ZMQResponseListener listener, long generation) {
+			if (done || (generation != key.generation)) {
+				return false;
+			}
+			requests.add(request);
+			listeners.add(listener);
+			return true;
+		}
+
+		private synchronized List<ZMQResponseListener> complete() {
+			done = true;
+			flights.remove(key, this);
+			return listeners;
+		}
+
+		@Override
+		public void onResponse(ZMQRestResponse response) {
+			List<ZMQResponseListener> joined = complete();
+			for (int i = 0; i < joined.size(); i++) {
+				// The dispatched request is marked by the REST channel
+				ZMQTrace trace = requests.get(i).trace();
+				if ((i > 0) && (trace != null)) {
+					trace.mark(ZMQTrace.RESPONDED);
+				}
+				joined.get(i).onResponse(response);
+			}
+		}
+
+		@Override
+		public void onFailure(Throwable e) {
+			for (ZMQResponseListener listener : complete()) {
+				listener.onFailure(e);
+			}
+		}
+
+		/**
+		 * Fails the joined requests when the dispatch fails
+		 */
+		void abort(Throwable e) {
+			List<ZMQResponseListener> joined = complete();
+			for (int i = 1; i < joined.size(); i++) {
+				joined.get(i).onFailure(e);
+			}
+		}
+	}
+
+	private ZMQRestResponse convert(ZMQRestRequest request, RestResponse response) throws IOException {
 		ZMQRestResponse zmqResponse = new ZMQRestResponse(response.status());
 
 		if(response.contentType() != null){
 			zmqResponse.setContentType(response.contentType());
 		}
         if (response.contentLength() > 0) {
-            if (response.contentThreadSafe()) {
-            	zmqResponse.setBody(ByteBuffer.wrap(response.content(), 0, response.contentLength()));
-            } else {
-                // argh!, we need to copy it over since we are not on the same thread...
-                byte[] body = new byte[response.contentLength()];
-                System.arraycopy(response.content(), 0, body, 0, response.contentLength());
-                zmqResponse.setBody(ByteBuffer.wrap(body));
-            }
+            // No copy here: the reply frames are assembled by the listener
+            // before the ES thread reuses the content
+            zmqResponse.setBody(ByteBuffer.wrap(response.content(), 0, response.contentLength()));
         }
+        zmqResponse.setContentThreadSafe(response.contentThreadSafe());
+        negotiate(request, zmqResponse);
         return zmqResponse;
     }
+
+    /**
+     * Clients that negotiate the content type or the compression get a
+     * headers frame, and a compressed content if it is large enough
+     */
+    void negotiate(ZMQRestRequest request, ZMQRestResponse zmqResponse) {
+        String acceptEncoding = request.header(ZMQCompression.ACCEPT_ENCODING_HEADER);
+        if ((request.protocol() == ZMQProtocol.V2) && ((acceptEncoding != null) || (request.header(ZMQProtocol.ACCEPT_HEADER) != null))) {
+            zmqResponse.setReplyHeaders(true);
+
+            String encoding = ZMQCompression.accepted(acceptEncoding);
+            int length = (zmqResponse.body != null) ? zmqResponse.body.remaining() : 0;
+            if ((encoding != null) && (compressionThreshold >= 0) && (length >= compressionThreshold)) {
+                zmqResponse.setContentEncoding(encoding);
+            }
+        }
+    }
 }
@@ -9,6 +9,7 @@ import org.elasticsearch.zeromq.exception.UnsupportedMethodZMQException;
 import org.elasticsearch.zeromq.exception.ZMQTransportException;
 
 import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -19,6 +20,8 @@ import java.util.Map;
  */
 public class ZMQRestRequest extends AbstractRestRequest {
 
+	private static final byte SEPARATOR = (byte) ZMQSocket.SEPARATOR.charAt(0);
+
 	private final List<byte[]> parts;
 
 	private Method method;
@@ -27,68 +30,201 @@ public class ZMQRestRequest extends AbstractRestRequest {
 
 	private String rawPath;
 
-	private final Map<String, String> params;
+	/**
+	 * Position of the '?' in the URI, or -1 if the URI has no query string
+	 */
+	private int queryStringPos = -1;
+
+	/**
+	 * Query string parameters, decoded on first access
+	 */
+	private Map<String, String> params;
 
 	public ByteBuffer body;
 
-	public ZMQRestRequest(String payload, List<byte[]> parts) {
+	/**
+	 * Headers of protocol V2 messages, with lower cased names
+	 */
+	private Map<String, String> headers;
+
+	private final int protocol;
+
+	/**
+	 * Phase timestamps of the request, if it is sampled by the slow log
+	 */
+	private volatile ZMQTrace trace;
+
+	/**
+	 * Creates a request from a protocol V1 message (single content frame)
+	 */
+	public ZMQRestRequest(byte[] payload, List<byte[]> parts) {
 		super();
 		this.parts = parts;
-		this.params = new HashMap<String, String>();
+		this.protocol = ZMQProtocol.V1;
 
 		parse(payload);
 	}
 
-	private void parse(String payload) {
+	/**
+	 * Creates a request from the content frames of a protocol V2 message:
+	 * method, URI, optional headers and content frames.
+	 */
+	public ZMQRestRequest(List<byte[]> content, List<byte[]> parts) {
+		this(content, parts, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param maxContentLength
+	 *            maximum length of the content once decompressed
+	 */
+	public ZMQRestRequest(List<byte[]> content, List<byte[]> parts, long maxContentLength) {
+		super();
+		this.parts = parts;
+		this.protocol = ZMQProtocol.V2;
+
+		byte[] m = content.get(0);
+		parseMethod(Unicode.fromBytes(m, 0, m.length));
+
+		byte[] u = content.get(1);
+		parseUri(Unicode.fromBytes(u, 0, u.length));
+
+		if (content.size() > 3) {
+			headers = ZMQProtocol.decodeHeaders(content.get(2));
+		}
+		byte[] c = content.get(content.size() - 1);
+
+		// Compressed content (see ZMQCompression)
+		String encoding = header(ZMQCompression.CONTENT_ENCODING_HEADER);
+		if ((encoding != null) && (c.length > 0) && !"identity".equalsIgnoreCase(encoding)) {
+			c = ZMQCompression.decompress(encoding, c, 0, c.length, maxContentLength);
+		}
+		body = ByteBuffer.wrap(c);
+	}
+
+	/**
+	 * Creates a request built by the transport itself (not received from a
+	 * ØMQ client)
+	 */
+	public ZMQRestRequest(Method method, String uri, ByteBuffer body) {
+		super();
+		this.parts = Collections.emptyList();
+		this.protocol = ZMQProtocol.V2;
+		this.method = method;
+
+		parseUri(uri);
+		this.body = body;
+	}
+
+	/**
+	 * Creates a request from the content frames of a message, the protocol
+	 * version is detected from the number of frames
+	 */
+	public static ZMQRestRequest parse(List<byte[]> content, List<byte[]> parts) {
+		return parse(content, parts, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param maxContentLength
+	 *            maximum length of a compressed content once decompressed
+	 */
+	public static ZMQRestRequest parse(List<byte[]> content, List<byte[]> parts, long maxContentLength) {
+		switch (ZMQProtocol.version(content.size())) {
+		case ZMQProtocol.V1:
+			return new ZMQRestRequest(content.get(0), parts);
+		case ZMQProtocol.V2:
+			return new ZMQRestRequest(content, parts, maxContentLength);
+		default:
+			throw new ZMQTransportException("Invalid message format");
+		}
+	}
+
+	/**
+	 * Parses a METHOD|URI|CONTENT message. Only the method and the URI are
+	 * decoded, the content is a slice of the original frame.
+	 */
+	private void parse(byte[] payload) {
 
 		if (payload != null) {
 
-			String[] s = payload.split("\\|");
+			int sepMethod = indexOf(payload, 0);
 
-            if(s.length <2){
+            if(sepMethod < 0){
                 throw new ZMQTransportException("Invalid message format");
             }
-			
+
 			// Method
-			String m = s[0];
-
-			if ("GET".equalsIgnoreCase(m)) {
-				this.method = Method.GET;
-			} else if ("POST".equalsIgnoreCase(m)) {
-				this.method = Method.POST;
-			} else if ("PUT".equalsIgnoreCase(m)) {
-				this.method = Method.PUT;
-			} else if ("DELETE".equalsIgnoreCase(m)) {
-				this.method = Method.DELETE;
-			} else if ("OPTIONS".equalsIgnoreCase(m)) {
-				this.method = Method.OPTIONS;
-			} else if ("HEAD".equalsIgnoreCase(m)) {
-				this.method = Method.HEAD;
-			} else {
-                throw new UnsupportedMethodZMQException(m);
-            }
+			parseMethod(Unicode.fromBytes(payload, 0, sepMethod));
 
 			// URI
-			this.uri = s[1];
+			int sepUri = indexOf(payload, sepMethod + 1);
+			int endUri = (sepUri < 0) ? payload.length : sepUri;
 
-            if((this.uri == null) || ("".equals(this.uri)) || "null".equalsIgnoreCase(this.uri)){
-                throw new NoURIFoundZMQException();
-            }
+			parseUri(Unicode.fromBytes(payload, sepMethod + 1, endUri - sepMethod - 1));
 
-			int pathEndPos = uri.indexOf('?');
-			if (pathEndPos < 0) {
-				this.rawPath = uri;
-			} else {
-				this.rawPath = uri.substring(0, pathEndPos);
-				RestUtils.decodeQueryString(uri, pathEndPos + 1, params);
+			// Content
+			if (sepUri >= 0) {
+				body = ByteBuffer.wrap(payload, sepUri + 1, payload.length - sepUri - 1);
 			}
+		}
+	}
 
-			// Content
-			int indexContent = payload.indexOf(ZMQSocket.SEPARATOR, m.length() + uri.length());
-			body = ByteBuffer.wrap(payload.substring(indexContent+1).getBytes());
+	private void parseMethod(String m) {
+		if ("GET".equalsIgnoreCase(m)) {
+			this.method = Method.GET;
+		} else if ("POST".equalsIgnoreCase(m)) {
+			this.method = Method.POST;
+		} else if ("PUT".equalsIgnoreCase(m)) {
+			this.method = Method.PUT;
+		} else if ("DELETE".equalsIgnoreCase(m)) {
+			this.method = Method.DELETE;
+		} else if ("OPTIONS".equalsIgnoreCase(m)) {
+			this.method = Method.OPTIONS;
+		} else if ("HEAD".equalsIgnoreCase(m)) {
+			this.method = Method.HEAD;
+		} else {
+            throw new UnsupportedMethodZMQException(m);
+        }
+	}
+
+	private void parseUri(String u) {
+		this.uri = u;
+
+        if((this.uri == null) || ("".equals(this.uri)) || "null".equalsIgnoreCase(this.uri)){
+            throw new NoURIFoundZMQException();
+        }
+
+		queryStringPos = uri.indexOf('?');
+		if (queryStringPos < 0) {
+			this.rawPath = uri;
+		} else {
+			this.rawPath = uri.substring(0, queryStringPos);
 		}
 	}
 
+	/**
+	 * @return the position of the next separator, starting at the given
+	 *         index, or -1 if not found
+	 */
+	private static int indexOf(byte[] payload, int from) {
+		for (int i = from; i < payload.length; i++) {
+			if (payload[i] == SEPARATOR) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public Map<String, String> params() {
+		if (params == null) {
+			params = new HashMap<String, String>();
+			if (queryStringPos >= 0) {
+				RestUtils.decodeQueryString(uri, queryStringPos + 1, params);
+			}
+		}
+		return params;
+	}
+
 	@Override
 	public Method method() {
 		return this.method;
@@ -104,6 +240,25 @@ public class ZMQRestRequest extends AbstractRestRequest {
 		return this.rawPath;
 	}
 
+	/**
+	 * @return the segments of a path, without the leading and trailing
+	 *         slashes
+	 */
+	static String[] segments(String path) {
+		int start = 0;
+		while ((start < path.length()) && (path.charAt(start) == '/')) {
+			start++;
+		}
+		int end = path.length();
+		while ((end > start) && (path.charAt(end - 1) == '/')) {
+			end--;
+		}
+		if (start == end) {
+			return new String[0];
+		}
+		return path.substring(start, end).split("/");
+	}
+
 	@Override
 	public boolean hasContent() {
 		return ((body != null) && (body.remaining() > 0));
@@ -147,31 +302,58 @@ public class ZMQRestRequest extends AbstractRestRequest {
 				contentLength());
 	}
 
+	/**
+	 * When the request has no <code>Content-Type</code> header, the content
+	 * type accepted by the client is returned instead: Elasticsearch builds
+	 * its responses with the content type of the request (ex: SMILE).
+	 */
 	@Override
 	public String header(String name) {
-		return null;
+		if (headers == null) {
+			return null;
+		}
+		String key = name.toLowerCase();
+		String value = headers.get(key);
+		if ((value == null) && ZMQProtocol.CONTENT_TYPE_HEADER.equals(key)) {
+			return ZMQProtocol.acceptedContentType(headers.get(ZMQProtocol.ACCEPT_HEADER));
+		}
+		return value;
+	}
+
+	/**
+	 * @return the protocol version of the message
+	 */
+	public int protocol() {
+		return protocol;
+	}
+
+	/**
+	 * @return the phase timestamps of the request, or null if the request is
+	 *         not traced
+	 */
+	public ZMQTrace trace() {
+		return trace;
+	}
+
+	public void trace(ZMQTrace trace) {
+		this.trace = trace;
 	}
 
 	@Override
 	public boolean hasParam(String key) {
-		return params.containsKey(key);
+		return params().containsKey(key);
 	}
 
 	@Override
 	public String param(String key) {
 
-		String p = params.get(key);
+		String p = params().get(key);
 		return p;
 	}
 
-	@Override
-	public Map<String, String> params() {
-		return params;
-	}
-
 	@Override
 	public String param(String key, String defaultValue) {
-		String value = params.get(key);
+		String value = params().get(key);
 		if (value == null) {
 			return defaultValue;
 		}
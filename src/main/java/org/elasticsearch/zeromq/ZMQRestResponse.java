@@ -2,8 +2,11 @@ package org.elasticsearch.zeromq;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.elasticsearch.common.Bytes;
+import org.elasticsearch.common.Unicode;
 import org.elasticsearch.rest.AbstractRestResponse;
 import org.elasticsearch.rest.RestStatus;
 
@@ -13,12 +16,42 @@ import org.elasticsearch.rest.RestStatus;
  */
 public class ZMQRestResponse extends AbstractRestResponse {
 
+	/**
+	 * Status line prefixes (STATUS|STATUS NAME|) indexed by status ordinal
+	 */
+	private static final byte[][] STATUS_PREFIXES;
+
+	static {
+		RestStatus[] statuses = RestStatus.values();
+		STATUS_PREFIXES = new byte[statuses.length][];
+		for (RestStatus status : statuses) {
+			STATUS_PREFIXES[status.ordinal()] = Unicode.fromStringAsBytes(status.getStatus() + ZMQSocket.SEPARATOR + status.name() + ZMQSocket.SEPARATOR);
+		}
+	}
+
 	private final RestStatus status;
 
 	public ByteBuffer body;
 
 	private String contentType;
 
+	private boolean contentThreadSafe = false;
+
+	/**
+	 * Encoding of the content in the reply frames, null if not compressed
+	 */
+	private String contentEncoding;
+
+	/**
+	 * True if the protocol V2 reply has a headers frame, for the clients that
+	 * send an Accept or an Accept-Encoding header
+	 */
+	private boolean replyHeaders = false;
+
+	private byte[][] frames;
+
+	private int framesProtocol;
+
 	public ZMQRestResponse(RestStatus status) {
 		super();
 		this.status = status;
@@ -57,39 +90,102 @@ public class ZMQRestResponse extends AbstractRestResponse {
 
 	@Override
 	public boolean contentThreadSafe() {
-		return false;
+		return contentThreadSafe;
+	}
+
+	public ZMQRestResponse setContentThreadSafe(boolean contentThreadSafe) {
+		this.contentThreadSafe = contentThreadSafe;
+		return this;
 	}
 
 	public void setContentType(String contentType) {
 		this.contentType = contentType;
 	}
 
+	public String contentEncoding() {
+		return contentEncoding;
+	}
+
 	/**
-	 * @return the payload to reply to the client
-	 * @throws IOException
+	 * @param contentEncoding
+	 *            encoding used to compress the content of the reply (see
+	 *            {@link ZMQCompression}), or null
 	 */
-	public byte[] payload() {
+	public ZMQRestResponse setContentEncoding(String contentEncoding) {
+		this.contentEncoding = contentEncoding;
+		return this;
+	}
 
-		// TODO optimise & challenge thoses lines...
-        ByteBuffer bStatusCode = ByteBuffer.wrap(Integer.toString(this.status.getStatus()).getBytes());
-		ByteBuffer bStatusName = ByteBuffer.wrap(this.status.name().getBytes());
-		ByteBuffer bSep1 = ByteBuffer.wrap(ZMQSocket.SEPARATOR.getBytes());
-        ByteBuffer bSep2 = ByteBuffer.wrap(ZMQSocket.SEPARATOR.getBytes());
-		ByteBuffer bContent = null;
-		
-		try {
-			bContent = ByteBuffer.wrap(content());
-		} catch (Exception e) {
-			bContent = ByteBuffer.wrap(e.getMessage().getBytes());
+	public ZMQRestResponse setReplyHeaders(boolean replyHeaders) {
+		this.replyHeaders = replyHeaders;
+		return this;
+	}
+
+	/**
+	 * Assembles the frames to reply to the client for the given protocol.
+	 * <p>
+	 * When the content is not thread safe, this method must be called by the
+	 * thread that sends the response to the {@link ZMQRestImpl}. Frames are
+	 * cached, so subsequent calls return the same arrays.
+	 */
+	public byte[][] frames(int protocol) {
+		if ((frames == null) || (framesProtocol != protocol)) {
+			if ((protocol == ZMQProtocol.V2) && replyHeaders) {
+				frames = new byte[][] { ZMQProtocol.statusFrame(this.status), headersFrame(), bodyFrame() };
+			} else if (protocol == ZMQProtocol.V2) {
+				frames = new byte[][] { ZMQProtocol.statusFrame(this.status), bodyFrame() };
+			} else {
+				frames = new byte[][] { payload() };
+			}
+			framesProtocol = protocol;
+		}
+		return frames;
+	}
+
+	private byte[] headersFrame() {
+		Map<String, String> headers = new LinkedHashMap<String, String>();
+		if (contentType != null) {
+			headers.put("Content-Type", contentType);
+		}
+		if ((contentEncoding != null) && (body != null)) {
+			headers.put("Content-Encoding", contentEncoding);
 		}
+		return ZMQProtocol.encodeHeaders(headers);
+	}
 
-		ByteBuffer payload = ByteBuffer.allocate(bStatusCode.limit() + bSep1.limit() + bStatusName.limit() + bSep2.limit() + bContent.limit());
-		payload.put(bStatusCode);
-		payload.put(bSep1);
-        payload.put(bStatusName);
-        payload.put(bSep2);
-        payload.put(bContent);
-		
-		return payload.array();
+	/**
+	 * @return the content, compressed if a content encoding is set, without
+	 *         copy when the body is thread safe and wraps a whole array
+	 */
+	private byte[] bodyFrame() {
+		if (body == null) {
+			return Bytes.EMPTY_ARRAY;
+		}
+		int offset = body.arrayOffset() + body.position();
+		if (contentEncoding != null) {
+			return ZMQCompression.compress(contentEncoding, body.array(), offset, body.remaining());
+		}
+		if (contentThreadSafe && (offset == 0) && (body.remaining() == body.array().length)) {
+			return body.array();
+		}
+		byte[] frame = new byte[body.remaining()];
+		System.arraycopy(body.array(), offset, frame, 0, frame.length);
+		return frame;
+	}
+
+	/**
+	 * @return the payload to reply to the client, made of the status line
+	 *         prefix followed by the content
+	 */
+	public byte[] payload() {
+		byte[] prefix = STATUS_PREFIXES[this.status.ordinal()];
+		int length = (body != null) ? body.remaining() : 0;
+
+		byte[] payload = new byte[prefix.length + length];
+		System.arraycopy(prefix, 0, payload, 0, prefix.length);
+		if (length > 0) {
+			System.arraycopy(body.array(), body.arrayOffset() + body.position(), payload, prefix.length, length);
+		}
+		return payload;
 	}
 }
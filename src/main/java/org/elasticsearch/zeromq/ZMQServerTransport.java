@@ -13,4 +13,14 @@ import org.elasticsearch.common.transport.BoundTransportAddress;
 public interface ZMQServerTransport extends LifecycleComponent<ZMQServerTransport> {
 
     BoundTransportAddress boundAddress();
+
+    /**
+     * @return the number of requests waiting for a worker
+     */
+    int queueDepth();
+
+    /**
+     * @return the metrics of the transport
+     */
+    ZMQStats stats();
 }
@@ -0,0 +1,181 @@
+/*
+ * Licensed to Elastic Search and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Elastic Search licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.zeromq;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.common.Unicode;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * Slow log of the transport, like the search slow log of ES: the requests
+ * traced (see {@link ZMQTrace}) that take longer than a threshold are logged
+ * in the <code>zeromq.slowlog</code> logger, with the time spent in each
+ * phase.
+ * <p>
+ * Thresholds are set for each log level with the
+ * <code>zeromq.slowlog.threshold.(warn|info|debug|trace)</code> settings (-1,
+ * the default, disables the level). Only one request out of
+ * <code>1 / zeromq.slowlog.sample_rate</code> is traced (1.0 by default, all
+ * the requests).
+ *
+ * @author tlrx
+ */
+public class ZMQSlowLog {
+
+	private final ESLogger logger;
+
+	final long warnThreshold;
+
+	final long infoThreshold;
+
+	final long debugThreshold;
+
+	final long traceThreshold;
+
+	/**
+	 * One request out of this interval is traced, 0 if tracing is disabled
+	 */
+	private final long sampleInterval;
+
+	private final AtomicLong requests = new AtomicLong();
+
+	public ZMQSlowLog(Settings settings) {
+		this.logger = Loggers.getLogger("zeromq.slowlog", settings);
+
+		this.warnThreshold = settings.getAsTime("zeromq.slowlog.threshold.warn", TimeValue.timeValueNanos(-1)).nanos();
+		this.infoThreshold = settings.getAsTime("zeromq.slowlog.threshold.info", TimeValue.timeValueNanos(-1)).nanos();
+		this.debugThreshold = settings.getAsTime("zeromq.slowlog.threshold.debug", TimeValue.timeValueNanos(-1)).nanos();
+		this.traceThreshold = settings.getAsTime("zeromq.slowlog.threshold.trace", TimeValue.timeValueNanos(-1)).nanos();
+
+		double sampleRate = settings.getAsDouble("zeromq.slowlog.sample_rate", 1.0);
+		boolean enabled = (warnThreshold >= 0) || (infoThreshold >= 0) || (debugThreshold >= 0) || (traceThreshold >= 0);
+		this.sampleInterval = (enabled && (sampleRate > 0)) ? Math.max(1, Math.round(1 / Math.min(1.0, sampleRate))) : 0;
+	}
+
+	/**
+	 * @return a trace for the next request if it is sampled, null otherwise
+	 */
+	public ZMQTrace sample(long received, long dequeued) {
+		if ((sampleInterval == 0) || ((requests.incrementAndGet() % sampleInterval) != 0)) {
+			return null;
+		}
+		return new ZMQTrace(received, dequeued);
+	}
+
+	/**
+	 * Logs the request if it is slower than one of the thresholds
+	 *
+	 * @param client
+	 *            ROUTER identity frame of the client
+	 */
+	public void log(ZMQTrace trace, ZMQRestRequest request, byte[] client, long requestBytes, long replyBytes, int status) {
+		long took = trace.total();
+
+		if ((warnThreshold >= 0) && (took > warnThreshold)) {
+			logger.warn("{}", new Entry(trace, request, client, requestBytes, replyBytes, status));
+		} else if ((infoThreshold >= 0) && (took > infoThreshold)) {
+			logger.info("{}", new Entry(trace, request, client, requestBytes, replyBytes, status));
+		} else if ((debugThreshold >= 0) && (took > debugThreshold)) {
+			logger.debug("{}", new Entry(trace, request, client, requestBytes, replyBytes, status));
+		} else if ((traceThreshold >= 0) && (took > traceThreshold)) {
+			logger.trace("{}", new Entry(trace, request, client, requestBytes, replyBytes, status));
+		}
+	}
+
+	/**
+	 * @return the identity of a client, as a string if it is printable or in
+	 *         hexadecimal otherwise (ex: identities generated by ØMQ)
+	 */
+	static String identity(byte[] client) {
+		if (client == null) {
+			return "";
+		}
+		boolean printable = (client.length > 0);
+		for (byte b : client) {
+			if ((b < 0x20) || (b > 0x7E)) {
+				printable = false;
+				break;
+			}
+		}
+		if (printable) {
+			return Unicode.fromBytes(client);
+		}
+
+		StringBuilder sb = new StringBuilder("0x");
+		for (byte b : client) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Slow log line, only built if the logger is enabled for its level
+	 */
+	private static class Entry {
+
+		private final ZMQTrace trace;
+
+		private final ZMQRestRequest request;
+
+		private final byte[] client;
+
+		private final long requestBytes;
+
+		private final long replyBytes;
+
+		private final int status;
+
+		Entry(ZMQTrace trace, ZMQRestRequest request, byte[] client, long requestBytes, long replyBytes, int status) {
+			this.trace = trace;
+			this.request = request;
+			this.client = client;
+			this.requestBytes = requestBytes;
+			this.replyBytes = replyBytes;
+			this.status = status;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append("took[").append(TimeValue.timeValueNanos(trace.total())).append("], ");
+			sb.append("took_millis[").append(trace.total() / 1000000).append("], ");
+			if (request != null) {
+				sb.append("method[").append(request.method()).append("], ");
+				sb.append("uri[").append(request.uri()).append("], ");
+			}
+			sb.append("client[").append(identity(client)).append("], ");
+			sb.append("status[").append(status).append("], ");
+			sb.append("request_bytes[").append(requestBytes).append("], ");
+			sb.append("reply_bytes[").append(replyBytes).append("]");
+
+			for (int phase = ZMQTrace.DEQUEUED; phase <= ZMQTrace.SENT; phase++) {
+				long duration = trace.duration(phase);
+				if (duration >= 0) {
+					sb.append(", ").append(ZMQTrace.NAMES[phase]).append('[').append(TimeValue.timeValueNanos(duration)).append(']');
+				}
+			}
+			return sb.toString();
+		}
+	}
+}
@@ -2,72 +2,162 @@ package org.elasticsearch.zeromq;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.elasticsearch.common.Unicode;
 import org.elasticsearch.common.logging.ESLogger;
-import org.elasticsearch.zeromq.impl.ZMQQueueServerImpl;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.zeromq.exception.ZMQContentTooLargeException;
+import org.elasticsearch.zeromq.exception.ZMQTransportException;
 import org.zeromq.ZMQ;
 import org.zeromq.ZMQ.Context;
 import org.zeromq.ZMQException;
 
 /**
+ * Worker of the {@link ZMQBroker}: announces itself as ready, processes the
+ * request it receives and sends the reply back to the broker.
+ *
  * @author tlrx
  *
  */
 public class ZMQSocket implements Runnable {
 
 	public final static String SEPARATOR = "|";
-	
+
+	public final static String REPLIES_BINDING = "inproc://es_zeromq_replies_";
+
+	/**
+	 * Maximum time to wait for the async requests in progress when closing
+	 */
+	private final static long DRAIN_TIMEOUT = 5000;
+
 	private final ESLogger logger;
-	
+
 	private ZMQ.Socket socket;
 
 	private volatile ZMQ.Context context;
 
 	final String workersBinding;
-	
+
 	final int id;
 
+	final ZMQLane lane;
+
+	/**
+	 * Ready frame sent to the broker, with the ID of the lane
+	 */
+	private final byte[] ready;
+
 	private final ZMQRestImpl client;
 
+	private final ZMQAdmissionControl admission;
+
+	private final ZMQStats stats;
+
+	private final ZMQSlowLog slowLog;
+
+	private ZMQStats.WorkerStats workerStats;
+
     private final AtomicBoolean isRunning;
 
-    private final CountDownLatch waitForSocketsClose;
-	
-	public ZMQSocket(ESLogger logger, Context context, String workersBinding, int id, ZMQRestImpl client, AtomicBoolean isRunning, CountDownLatch waitForSocketsClose) {
+    /**
+     * Number of open workers, decremented when this worker is closed
+     */
+    private final AtomicInteger openWorkers;
+
+    /**
+     * In async mode, requests are dispatched to ES without waiting for the
+     * response: replies come back through the reply channel.
+     */
+    private final boolean async;
+
+    private ZMQ.Socket replies;
+
+    private ZMQReplyChannel replyChannel;
+
+    /**
+     * Number of async requests being processed by ES
+     */
+    private final AtomicInteger inflight = new AtomicInteger();
+
+	public ZMQSocket(ESLogger logger, Context context, String workersBinding, int id, ZMQLane lane, ZMQRestImpl client, ZMQAdmissionControl admission, ZMQStats stats, ZMQSlowLog slowLog, AtomicBoolean isRunning, AtomicInteger openWorkers, boolean async) {
 		super();
 		this.context = context;
 		this.workersBinding = workersBinding;
 		this.id = id;
+		this.lane = lane;
+		this.ready = new byte[] { ZMQBroker.READY[0], (byte) lane.ordinal() };
 		this.logger = logger;
 		this.client = client;
+		this.admission = admission;
+		this.stats = stats;
+		this.slowLog = slowLog;
         this.isRunning = isRunning;
-        this.waitForSocketsClose = waitForSocketsClose;
+        this.openWorkers = openWorkers;
+        this.async = async;
 	}
 
 	@Override
 	public void run() {
 
-		socket = context.socket(ZMQ.ROUTER);
+		workerStats = stats.addWorker(id, lane);
+
+		socket = context.socket(ZMQ.DEALER);
+		socket.setLinger(0);
 		socket.connect(workersBinding);
 
+        ZMQ.Poller poller = null;
+        if (async) {
+            String repliesBinding = REPLIES_BINDING + id;
+
+            replies = context.socket(ZMQ.PULL);
+            replies.bind(repliesBinding);
+            replyChannel = new ZMQReplyChannel(context, repliesBinding);
+
+            poller = context.poller(2);
+            poller.register(socket, ZMQ.Poller.POLLIN);
+            poller.register(replies, ZMQ.Poller.POLLIN);
+        }
+
         if (logger.isInfoEnabled()) {
-            logger.info("ØMQ socket {} is listening...", id);
+            logger.info("ØMQ socket {} is listening{} on lane {}...", id, async ? " (async)" : "", lane.lowercase());
         }
 
+        socket.send(ready, 0);
+
         while (isRunning.get()) {
 
+            if (async) {
+                try {
+                    poller.poll();
+                } catch (ZMQException zmqe) {
+                    if(logger.isWarnEnabled()){
+                        logger.warn("Exception when polling ØMQ sockets", zmqe);
+                    }
+                    continue;
+                }
+
+                // Forwards the replies computed by ES threads
+                if (poller.pollin(1)) {
+                    forwardReplies();
+                }
+                if (!poller.pollin(0)) {
+                    continue;
+                }
+            }
+
 			// Reads all parts of the message
 			List<byte[]> parts = new ArrayList<byte[]>();
 
 			try {
-				
+
 				do {
 					byte[] request = socket.recv(0);
 					parts.add(request);
-				}while (socket.hasReceiveMore());	
-				
+				}while (socket.hasReceiveMore());
+
 			} catch (ZMQException zmqe) {
 				// Close the socket
 				if(logger.isWarnEnabled()){
@@ -79,58 +169,159 @@ public class ZMQSocket implements Runnable {
                 continue;
             }
 
-			// Payload
-			String payload = new String(parts.get(parts.size() - 1));
+            // Control frame sent by the broker
+            byte[] control = parts.get(0);
+            if((control.length > 0) && (control[0] == ZMQBroker.STOP[0])){
+                if(logger.isInfoEnabled()){
+                    logger.info("ØMQ socket {} receives stop message", id);
+                }
+                break;
+            }
+            if(parts.size() == 1){
+                continue;
+            }
+
+            // Drops the request if the client does not wait for it anymore
+            final long start = System.nanoTime();
+            final long deadline = ZMQBroker.deadline(control);
+            if((deadline != 0) && ZMQBroker.isExpired(control, start)){
+                admission.expire();
+                socket.send(ready, 0);
+                continue;
+            }
+            final long received = ZMQBroker.received(control);
+            final ZMQTrace trace = slowLog.sample(received, start);
+            parts = parts.subList(1, parts.size());
+
+            // Envelope frames to send back with the reply
+            int contentStart = ZMQProtocol.contentStart(parts);
+            final List<byte[]> envelope = parts.subList(0, contentStart);
+            final List<byte[]> content = parts.subList(contentStart, parts.size());
+
+            long bytes = 0;
+            for (byte[] frame : content) {
+                bytes += frame.length;
+            }
+
+            int protocol = ZMQProtocol.replyVersion(parts, contentStart);
 
             if(logger.isDebugEnabled()){
-                logger.debug("ØMQ socket {} receives message: {}", id, payload);
+                logger.debug("ØMQ socket {} receives message: {}", id, (protocol == ZMQProtocol.V1) ? Unicode.fromBytes(content.get(0)) : content.size() + " frames");
             }
 
             ZMQRestResponse response = null;
             ZMQRestRequest request = null;
+            byte[][] rejection = null;
+            byte[][] cached = null;
+            ZMQResponseCache.Key cacheKey = null;
+            ZMQLane requestLane = ZMQLane.DEFAULT;
+            long parsed = 0;
 
             // Stores the latest exception
             Exception lastException = null;
 
-            if(ZMQQueueServerImpl.ZMQ_STOP_SOCKET.equals(payload)){
-                if(logger.isInfoEnabled()){
-                    logger.info("ØMQ socket {} receives stop message", id);
+            try{
+                // Construct an ES request
+                request = ZMQRestRequest.parse(content, parts, client.maxDecompressedLength());
+                requestLane = ZMQLane.classify(request.method().name(), request.rawPath());
+                parsed = System.nanoTime();
+                if (trace != null) {
+                    trace.mark(ZMQTrace.PARSED);
+                    request.trace(trace);
+                }
+                if (deadline != 0) {
+                    searchTimeout(request, deadline);
                 }
 
-            } else {
-                try{
-                    // Construct an ES request
-                    request = new ZMQRestRequest(payload, parts);
+                cacheKey = client.cache().key(request);
+                if (cacheKey != null) {
+                    cached = client.cache().get(cacheKey);
+                }
 
+                final ZMQLane permit = (cached == null) ? admission.acquire(request) : null;
+                if (cached != null) {
+                    // Cached reply, ES is not called
+
+                } else if (permit == null) {
+                    // Too many requests in progress, ES is not called
+                    rejection = admission.rejection(protocol);
+
+                } else if (async) {
+                    // The reply will be sent back by the reply channel
+                    inflight.incrementAndGet();
+                    try {
+                        client.dispatch(request, new AsyncReplyListener(request, envelope, bytes, protocol, permit, deadline, requestLane, parsed, cacheKey));
+                    } catch (RuntimeException e) {
+                        inflight.decrementAndGet();
+                        admission.release(permit);
+                        throw e;
+                    }
+                } else {
                     // Process the request
-                    response = client.process(request);
-
-                }catch (Exception e){
-                    if(logger.isErrorEnabled()){
-                        logger.error("Exception when processing ØMQ message", e);
+                    try {
+                        response = client.process(request);
+                    } finally {
+                        admission.release(permit);
                     }
-                    response = null;
-                    lastException = e;
                 }
+
+            }catch (Exception e){
+                if(logger.isErrorEnabled()){
+                    logger.error("Exception when processing ØMQ message", e);
+                }
+                response = null;
+                lastException = e;
             }
 
-			// Sends all the message parts back
-			for(int i=0; i<(parts.size() - 1); i++){
-				socket.send(parts.get(i), ZMQ.SNDMORE);	
-			}
+            long end = System.nanoTime();
+            stats.received(requestLane, bytes, (received != 0) ? start - received : 0, ((parsed != 0) ? parsed : end) - start);
+            workerStats.requests.inc();
 
             // Sends the reply
-            if (response != null) {
-                socket.send(response.payload(), 0);
+            byte[][] frames = null;
+            int status = 0;
+
+            if (((response != null) || (cached != null)) && (deadline != 0) && ZMQBroker.isExpired(control, end)) {
+                admission.expire();
+
+            } else if (cached != null) {
+                frames = cached;
+                status = RestStatus.OK.getStatus();
+                send(envelope, frames);
+                stats.replied(requestLane, status, frames, end - parsed);
+
+            } else if (response != null) {
+                frames = response.frames(protocol);
+                status = response.status().getStatus();
+                if (cacheKey != null) {
+                    client.cache().put(cacheKey, response.status(), frames);
+                }
+                send(envelope, frames);
+                stats.replied(requestLane, status, frames, end - parsed);
+
+            } else if (rejection != null) {
+                frames = rejection;
+                status = ZMQProtocol.TOO_MANY_REQUESTS;
+                send(envelope, frames);
+                stats.replied(requestLane, status, frames, -1);
 
             } else if(lastException != null) {
                 // An error occured
-                socket.send(("Unable to process ØMQ message [" + lastException.getMessage() + "]").getBytes(), 0);
+                frames = errorFrames(protocol, lastException);
+                status = errorStatus(lastException).getStatus();
+                send(envelope, frames);
+                stats.failed(requestLane);
+                workerStats.errors.inc();
+                stats.replied(requestLane, status, frames, -1);
+            }
 
-            } else {
-                // Should not happen except when stop message is received
-                socket.send(("Unable to process ØMQ message or stop socket message received").getBytes(), 0);
+            if ((trace != null) && (frames != null)) {
+                trace.mark(ZMQTrace.SENT);
+                slowLog.log(trace, request, envelope.isEmpty() ? null : envelope.get(0), bytes, length(frames), status);
             }
+
+            // Ready for the next request
+            socket.send(ready, 0);
 		}
 
 		try {
@@ -138,15 +329,206 @@ public class ZMQSocket implements Runnable {
                 logger.debug("Closing ØMQ socket {}", id);
             }
 
-            // Close the socket
+            // Close the sockets
+            if (async) {
+                drainReplies();
+                replyChannel.close();
+                replies.close();
+            }
             socket.close();
             logger.info("ØMQ socket {} is closed", id);
 
-            // Decrement the countdownlatch
-            this.waitForSocketsClose.countDown();
-
 		} catch (Exception e) {
 			logger.error("Exception when closing ØMQ socket", e);
+		} finally {
+            stats.removeWorker(id);
+            openWorkers.decrementAndGet();
 		}
 	}
+
+    /**
+     * @return the timeout to give to {@link ZMQ.Poller#poll(long)}: jzmq
+     *         passes it as is to zmq_poll, which expects microseconds before
+     *         ØMQ 3.0
+     */
+    public static long pollTimeout(long millis) {
+        return (ZMQ.getMajorVersion() < 3) ? millis * 1000 : millis;
+    }
+
+    /**
+     * Forwards all the pending replies (envelope and payload frames) from the
+     * reply channel to the broker
+     */
+    private void forwardReplies() {
+        byte[] frame;
+        while ((frame = replies.recv(ZMQ.NOBLOCK)) != null) {
+            socket.send(ZMQBroker.REPLY, ZMQ.SNDMORE);
+
+            boolean more = replies.hasReceiveMore();
+            socket.send(frame, more ? ZMQ.SNDMORE : 0);
+
+            while (more) {
+                frame = replies.recv(0);
+                more = replies.hasReceiveMore();
+                socket.send(frame, more ? ZMQ.SNDMORE : 0);
+            }
+        }
+    }
+
+    /**
+     * Forwards the replies of the requests still processed by ES, so that
+     * they are not lost when the worker is retired or stopped
+     */
+    private void drainReplies() {
+        long timeout = System.currentTimeMillis() + DRAIN_TIMEOUT;
+
+        ZMQ.Poller poller = context.poller(1);
+        poller.register(replies, ZMQ.Poller.POLLIN);
+
+        while ((inflight.get() > 0) && (System.currentTimeMillis() < timeout)) {
+            poller.poll(pollTimeout(50));
+            if (poller.pollin(0)) {
+                forwardReplies();
+            }
+        }
+        forwardReplies();
+
+        if ((inflight.get() > 0) && logger.isWarnEnabled()) {
+            logger.warn("ØMQ socket {} is closed with {} requests in progress", id, inflight.get());
+        }
+    }
+
+    /**
+     * Sends all the envelope frames back to the broker, followed by the reply
+     * frames
+     */
+    private void send(List<byte[]> envelope, byte[]... reply) {
+        socket.send(ZMQBroker.REPLY, ZMQ.SNDMORE);
+        for(byte[] frame : envelope){
+            socket.send(frame, ZMQ.SNDMORE);
+        }
+        for (int i = 0; i < reply.length; i++) {
+            socket.send(reply[i], (i < reply.length - 1) ? ZMQ.SNDMORE : 0);
+        }
+    }
+
+    /**
+     * Passes the time left before the deadline of a search request to ES as
+     * its timeout, so that ES stops searching when the client gives up
+     */
+    private static void searchTimeout(ZMQRestRequest request, long deadline) {
+        if (request.rawPath().endsWith("/_search") && !request.hasParam("timeout")) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            request.params().put("timeout", Math.max(1, remaining) + "ms");
+        }
+    }
+
+    private static long length(byte[][] frames) {
+        long length = 0;
+        for (byte[] frame : frames) {
+            length += frame.length;
+        }
+        return length;
+    }
+
+    private static RestStatus errorStatus(Throwable e) {
+        if (e instanceof ZMQContentTooLargeException) {
+            return RestStatus.REQUEST_ENTITY_TOO_LARGE;
+        }
+        return (e instanceof ZMQTransportException) ? RestStatus.BAD_REQUEST : RestStatus.INTERNAL_SERVER_ERROR;
+    }
+
+    private static byte[][] errorFrames(int protocol, Throwable e) {
+        byte[] message = ("Unable to process ØMQ message [" + e.getMessage() + "]").getBytes();
+
+        if (protocol == ZMQProtocol.V2) {
+            return new byte[][] { ZMQProtocol.statusFrame(errorStatus(e)), message };
+        }
+        return new byte[][] { message };
+    }
+
+    /**
+     * Listener that pushes the reply to the reply channel of this socket
+     */
+    private class AsyncReplyListener implements ZMQResponseListener {
+
+        private final List<byte[]> envelope;
+
+        private final int protocol;
+
+        private final ZMQLane permit;
+
+        private final long deadline;
+
+        private final ZMQLane requestLane;
+
+        private final long dispatched;
+
+        private final ZMQRestRequest request;
+
+        private final long requestBytes;
+
+        private final ZMQResponseCache.Key cacheKey;
+
+        AsyncReplyListener(ZMQRestRequest request, List<byte[]> envelope, long requestBytes, int protocol, ZMQLane permit, long deadline,
+                ZMQLane requestLane, long dispatched, ZMQResponseCache.Key cacheKey) {
+            this.request = request;
+            this.requestBytes = requestBytes;
+            this.envelope = envelope;
+            this.protocol = protocol;
+            this.permit = permit;
+            this.deadline = deadline;
+            this.requestLane = requestLane;
+            this.dispatched = dispatched;
+            this.cacheKey = cacheKey;
+        }
+
+        @Override
+        public void onResponse(ZMQRestResponse response) {
+            byte[][] frames = response.frames(protocol);
+            if (request.trace() != null) {
+                request.trace().mark(ZMQTrace.ASSEMBLED);
+            }
+            if (cacheKey != null) {
+                client.cache().put(cacheKey, response.status(), frames);
+            }
+            reply(response.status().getStatus(), frames);
+        }
+
+        @Override
+        public void onFailure(Throwable e) {
+            if(logger.isErrorEnabled()){
+                logger.error("Exception when processing ØMQ message", e);
+            }
+            stats.failed(requestLane);
+            workerStats.errors.inc();
+            reply(errorStatus(e).getStatus(), errorFrames(protocol, e));
+        }
+
+        private void reply(int status, byte[]... frames) {
+            try {
+                long now = System.nanoTime();
+                if ((deadline != 0) && (now - deadline > 0)) {
+                    admission.expire();
+
+                } else if (replyChannel.send(envelope, frames)) {
+                    stats.replied(requestLane, status, frames, now - dispatched);
+
+                    ZMQTrace trace = request.trace();
+                    if (trace != null) {
+                        trace.mark(ZMQTrace.SENT);
+                        slowLog.log(trace, request, envelope.isEmpty() ? null : envelope.get(0), requestBytes, length(frames), status);
+                    }
+
+                } else {
+                    if(logger.isDebugEnabled()){
+                        logger.debug("ØMQ socket {} is closed, reply dropped", id);
+                    }
+                }
+            } finally {
+                inflight.decrementAndGet();
+                admission.release(permit);
+            }
+        }
+    }
 }
@@ -0,0 +1,388 @@
+/*
+ * Licensed to Elastic Search and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Elastic Search licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.zeromq;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.zeromq.exception.ZMQTransportException;
+
+/**
+ * Durable spool of ingest messages, made of memory mapped segment files.
+ * <p>
+ * Each record is stored as: record length (int), number of frames (int), then
+ * the length (int) and the bytes of each frame. The record length is written
+ * last, so a record interrupted by a crash is ignored on recovery. A length
+ * of -1 means that the next record is in the next segment.
+ * <p>
+ * There must be a single writer thread ({@link #append(List)}) and a single
+ * reader thread ({@link #read()}). The reader position is persisted in a
+ * checkpoint file with {@link #checkpoint(Position)}, segments that are
+ * entirely before the checkpoint are deleted.
+ * <p>
+ * Appended records survive a crash of the process as soon as they are
+ * written in the mapped segment. They survive a crash of the OS or a power
+ * loss once the segment is forced to the disk: on every append if the sync
+ * interval is 0, otherwise by {@link #sync()} once the interval has elapsed
+ * since the last force.
+ *
+ * @author tlrx
+ */
+public class ZMQSpool {
+
+	private static final String SEGMENT_PREFIX = "segment-";
+
+	private static final String SEGMENT_SUFFIX = ".spool";
+
+	private static final String CHECKPOINT = "checkpoint";
+
+	private static final int NEXT_SEGMENT = -1;
+
+	private final ESLogger logger;
+
+	private final File directory;
+
+	private final long segmentSize;
+
+	/**
+	 * Maximum time (nanos) between an append and the force of its segment,
+	 * 0 to force the segment on every append
+	 */
+	private final long syncInterval;
+
+	private long lastSync;
+
+	private boolean unsynced = false;
+
+	private long writeSegment;
+
+	private MappedByteBuffer writeBuffer;
+
+	/**
+	 * Position after the last record written, published to the reader
+	 */
+	private volatile Position written;
+
+	private long readSegment;
+
+	private int readOffset;
+
+	private MappedByteBuffer readBuffer;
+
+	public ZMQSpool(ESLogger logger, File directory, long segmentSize, long syncInterval) throws IOException {
+		this.logger = logger;
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.syncInterval = syncInterval;
+		this.lastSync = System.nanoTime();
+
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("Unable to create spool directory " + directory);
+		}
+		recover();
+	}
+
+	/**
+	 * Opens the existing segments: the reader starts at the checkpoint and
+	 * the writer after the last complete record.
+	 */
+	private void recover() throws IOException {
+		long[] segments = segments();
+
+		Position checkpoint = readCheckpoint();
+		if ((checkpoint == null) || ((segments.length > 0) && (checkpoint.segment < segments[0]))) {
+			checkpoint = new Position((segments.length > 0) ? segments[0] : 0, 0);
+		}
+		readSegment = checkpoint.segment;
+		readOffset = checkpoint.offset;
+
+		if (segments.length == 0) {
+			writeSegment = checkpoint.segment;
+			writeBuffer = map(writeSegment, segmentSize);
+			written = new Position(writeSegment, 0);
+			return;
+		}
+
+		writeSegment = segments[segments.length - 1];
+		writeBuffer = map(writeSegment, 0);
+
+		// Finds the end of the last complete record
+		int offset = (writeSegment == checkpoint.segment) ? checkpoint.offset : 0;
+		while (offset + 4 <= writeBuffer.capacity()) {
+			int length = writeBuffer.getInt(offset);
+			if ((length <= 0) || (offset + 4 + length > writeBuffer.capacity())) {
+				break;
+			}
+			offset += 4 + length;
+		}
+		writeBuffer.position(offset);
+		written = new Position(writeSegment, offset);
+
+		if (logger.isInfoEnabled()) {
+			logger.info("ØMQ spool recovered from {} (checkpoint {}, end {})", directory, checkpoint, written);
+		}
+	}
+
+	/**
+	 * Appends a message to the spool
+	 */
+	public void append(List<byte[]> frames) throws IOException {
+		int length = 4;
+		for (byte[] frame : frames) {
+			length += 4 + frame.length;
+		}
+
+		if (writeBuffer.remaining() < 4 + length) {
+			if (writeBuffer.remaining() >= 4) {
+				writeBuffer.putInt(writeBuffer.position(), NEXT_SEGMENT);
+			}
+			writeBuffer.force();
+			writeSegment++;
+			writeBuffer = map(writeSegment, Math.max(segmentSize, 4 + length));
+		}
+
+		int start = writeBuffer.position();
+		writeBuffer.position(start + 4);
+		writeBuffer.putInt(frames.size());
+		for (byte[] frame : frames) {
+			writeBuffer.putInt(frame.length);
+			writeBuffer.put(frame);
+		}
+
+		// The length is written last
+		writeBuffer.putInt(start, length);
+		written = new Position(writeSegment, writeBuffer.position());
+
+		unsynced = true;
+		if (syncInterval == 0) {
+			force();
+		} else {
+			sync();
+		}
+	}
+
+	/**
+	 * Forces the segment to the disk if records have been appended since the
+	 * last force and the sync interval has elapsed. Must be called by the
+	 * writer thread, also when no message is appended.
+	 */
+	public void sync() {
+		if (unsynced && (System.nanoTime() - lastSync >= syncInterval)) {
+			force();
+		}
+	}
+
+	/**
+	 * @return the frames of the next message, or null if all the messages
+	 *         have been read
+	 */
+	public List<byte[]> read() throws IOException {
+		while (true) {
+			Position end = written;
+			if ((readSegment == end.segment) && (readOffset >= end.offset)) {
+				return null;
+			}
+
+			if (readBuffer == null) {
+				readBuffer = map(readSegment, 0);
+			}
+
+			int length = (readOffset + 4 <= readBuffer.capacity()) ? readBuffer.getInt(readOffset) : 0;
+			if ((length == NEXT_SEGMENT) || ((length == 0) && (readSegment < end.segment))) {
+				readSegment++;
+				readOffset = 0;
+				readBuffer = null;
+				continue;
+			}
+			if (length <= 0) {
+				throw new ZMQTransportException("Corrupted ØMQ spool segment " + readSegment + " at " + readOffset);
+			}
+
+			ByteBuffer record = readBuffer.duplicate();
+			record.position(readOffset + 4);
+			int count = record.getInt();
+
+			List<byte[]> frames = new ArrayList<byte[]>(count);
+			for (int i = 0; i < count; i++) {
+				byte[] frame = new byte[record.getInt()];
+				record.get(frame);
+				frames.add(frame);
+			}
+
+			readOffset += 4 + length;
+			return frames;
+		}
+	}
+
+	/**
+	 * @return the position of the reader, after the last message read
+	 */
+	public Position position() {
+		return new Position(readSegment, readOffset);
+	}
+
+	/**
+	 * @return true if messages are waiting to be read
+	 */
+	public boolean hasPending() {
+		Position end = written;
+		return (readSegment != end.segment) || (readOffset < end.offset);
+	}
+
+	/**
+	 * Persists the position from which messages will be read after a restart,
+	 * and deletes the segments before it.
+	 */
+	public void checkpoint(Position position) throws IOException {
+		File tmp = new File(directory, CHECKPOINT + ".tmp");
+		RandomAccessFile file = new RandomAccessFile(tmp, "rw");
+		try {
+			file.setLength(0);
+			file.writeLong(position.segment);
+			file.writeInt(position.offset);
+			file.getFD().sync();
+		} finally {
+			file.close();
+		}
+
+		File checkpoint = new File(directory, CHECKPOINT);
+		if (!tmp.renameTo(checkpoint)) {
+			checkpoint.delete();
+			if (!tmp.renameTo(checkpoint)) {
+				throw new IOException("Unable to write ØMQ spool checkpoint " + checkpoint);
+			}
+		}
+
+		for (long segment : segments()) {
+			if (segment < position.segment) {
+				segment(segment).delete();
+			}
+		}
+	}
+
+	/**
+	 * Flushes the written messages to the disk
+	 */
+	public void force() {
+		writeBuffer.force();
+		unsynced = false;
+		lastSync = System.nanoTime();
+	}
+
+	private Position readCheckpoint() throws IOException {
+		File checkpoint = new File(directory, CHECKPOINT);
+		if (!checkpoint.exists()) {
+			return null;
+		}
+		RandomAccessFile file = new RandomAccessFile(checkpoint, "r");
+		try {
+			return new Position(file.readLong(), file.readInt());
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * @return the sorted numbers of the existing segments
+	 */
+	private long[] segments() {
+		String[] names = directory.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if (names == null) {
+			return new long[0];
+		}
+
+		long[] segments = new long[names.length];
+		for (int i = 0; i < names.length; i++) {
+			segments[i] = Long.parseLong(names[i].substring(SEGMENT_PREFIX.length(), names[i].length() - SEGMENT_SUFFIX.length()));
+		}
+		Arrays.sort(segments);
+		return segments;
+	}
+
+	private File segment(long segment) {
+		return new File(directory, SEGMENT_PREFIX + String.format("%019d", segment) + SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * Maps a segment file, created with the given size if it does not exist
+	 */
+	private MappedByteBuffer map(long segment, long size) throws IOException {
+		File file = segment(segment);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			long length = raf.length();
+			if (length == 0) {
+				length = size;
+				raf.setLength(length);
+			}
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Position in the spool
+	 */
+	public static class Position {
+
+		final long segment;
+
+		final int offset;
+
+		Position(long segment, int offset) {
+			this.segment = segment;
+			this.offset = offset;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Position)) {
+				return false;
+			}
+			Position p = (Position) o;
+			return (segment == p.segment) && (offset == p.offset);
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (segment ^ (segment >>> 32)) * 31 + offset;
+		}
+
+		@Override
+		public String toString() {
+			return segment + ":" + offset;
+		}
+	}
+}
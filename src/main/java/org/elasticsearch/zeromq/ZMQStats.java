@@ -0,0 +1,544 @@
+/*
+ * Licensed to Elastic Search and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Elastic Search licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.zeromq;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.RestStatus;
+
+/**
+ * Metrics of the transport: the workers record each request (per
+ * {@link ZMQLane}, per status code and per worker), the brokers, the admission
+ * control, the response cache, the request coalescing, the get batching and
+ * the ingest socket expose their own counters.
+ * <p>
+ * Recording only updates striped counters and lock free histograms, so that
+ * it can stay enabled under load. The metrics are exposed by the
+ * <code>/_zeromq/stats</code> REST endpoint (see {@link ZMQStatsRestAction})
+ * and by JMX (see {@link ZMQStatsMBean}).
+ *
+ * @author tlrx
+ */
+public class ZMQStats implements ZMQStatsMBean {
+
+	private static final int MAX_STATUS = 600;
+
+	private final LaneStats[] lanes;
+
+	/**
+	 * Number of replies per status code, including the codes that have no
+	 * {@link RestStatus} (ex: 429)
+	 */
+	private final AtomicLongArray statuses = new AtomicLongArray(MAX_STATUS);
+
+	private final ConcurrentMap<Integer, WorkerStats> workers = new ConcurrentHashMap<Integer, WorkerStats>();
+
+	private final List<ZMQBroker> brokers = new CopyOnWriteArrayList<ZMQBroker>();
+
+	private final ZMQAdmissionControl admission;
+
+	private volatile ZMQIngestSocket ingestSocket;
+
+	private volatile ZMQRestImpl client;
+
+	public ZMQStats(ZMQAdmissionControl admission) {
+		this.admission = admission;
+
+		this.lanes = new LaneStats[ZMQLane.values().length];
+		for (ZMQLane lane : ZMQLane.values()) {
+			lanes[lane.ordinal()] = new LaneStats();
+		}
+	}
+
+	public void addBroker(ZMQBroker broker) {
+		brokers.add(broker);
+	}
+
+	public void setIngestSocket(ZMQIngestSocket ingestSocket) {
+		this.ingestSocket = ingestSocket;
+	}
+
+	public void setClient(ZMQRestImpl client) {
+		this.client = client;
+	}
+
+	/**
+	 * @return the counters of a new worker
+	 */
+	public WorkerStats addWorker(int id, ZMQLane lane) {
+		WorkerStats worker = new WorkerStats(lane);
+		workers.put(id, worker);
+		return worker;
+	}
+
+	public void removeWorker(int id) {
+		workers.remove(id);
+	}
+
+	/**
+	 * Records a request handed to a worker
+	 *
+	 * @param bytes
+	 *            size of the content frames
+	 * @param queueNanos
+	 *            time between the reception by the broker and the reception by
+	 *            the worker
+	 * @param parseNanos
+	 *            time to build the ES request
+	 */
+	public void received(ZMQLane lane, long bytes, long queueNanos, long parseNanos) {
+		LaneStats stats = lanes[lane.ordinal()];
+		stats.requests.inc();
+		stats.rate.inc();
+		stats.bytesReceived.inc(bytes);
+		stats.queueWait.record(TimeUnit.NANOSECONDS.toMicros(queueNanos));
+		stats.parseTime.record(TimeUnit.NANOSECONDS.toMicros(parseNanos));
+	}
+
+	/**
+	 * Records a reply sent by a worker
+	 *
+	 * @param status
+	 *            status code of the reply, or 0 if unknown
+	 * @param dispatchNanos
+	 *            time taken by ES to process the request, or -1 if the request
+	 *            was not processed by ES
+	 */
+	public void replied(ZMQLane lane, int status, byte[][] frames, long dispatchNanos) {
+		long bytes = 0;
+		for (byte[] frame : frames) {
+			bytes += frame.length;
+		}
+
+		LaneStats stats = lanes[lane.ordinal()];
+		stats.bytesSent.inc(bytes);
+		stats.replySize.record(bytes);
+		if (dispatchNanos >= 0) {
+			stats.dispatchTime.record(TimeUnit.NANOSECONDS.toMicros(dispatchNanos));
+		}
+		if ((status > 0) && (status < MAX_STATUS)) {
+			statuses.incrementAndGet(status);
+		}
+	}
+
+	/**
+	 * Records a request that could not be parsed or processed
+	 */
+	public void failed(ZMQLane lane) {
+		lanes[lane.ordinal()].errors.inc();
+	}
+
+	/**
+	 * Adds all the metrics to the builder
+	 */
+	public void toXContent(XContentBuilder builder) throws IOException {
+		builder.startObject("requests");
+		builder.field("total", getRequests());
+		builder.field("per_second", getRequestsPerSecond());
+		builder.field("errors", getErrors());
+		builder.field("bytes_received", getBytesReceived());
+		builder.field("bytes_sent", getBytesSent());
+		builder.endObject();
+
+		builder.startObject("lanes");
+		for (ZMQLane lane : ZMQLane.values()) {
+			LaneStats stats = lanes[lane.ordinal()];
+
+			builder.startObject(lane.lowercase());
+			builder.field("requests", stats.requests.count());
+			builder.field("per_second", stats.rate.perSecond());
+			builder.field("errors", stats.errors.count());
+			builder.field("bytes_received", stats.bytesReceived.count());
+			builder.field("bytes_sent", stats.bytesSent.count());
+			builder.field("queue_depth", queueDepth(lane));
+			builder.field("workers", workers(lane));
+			stats.queueWait.toXContent("queue_wait_micros", builder);
+			stats.parseTime.toXContent("parse_time_micros", builder);
+			stats.dispatchTime.toXContent("dispatch_time_micros", builder);
+			stats.replySize.toXContent("reply_size_bytes", builder);
+			builder.endObject();
+		}
+		builder.endObject();
+
+		builder.startObject("statuses");
+		for (int status = 0; status < MAX_STATUS; status++) {
+			long count = statuses.get(status);
+			if (count > 0) {
+				builder.field(String.valueOf(status), count);
+			}
+		}
+		builder.endObject();
+
+		builder.startObject("broker");
+		builder.field("queue_depth", getQueueDepth());
+		builder.field("peak_queue_depth", getPeakQueueDepth());
+		builder.field("ready_workers", readyWorkers());
+		builder.field("routed", routed());
+		builder.field("rejected", getRejectedQueueFull());
+		builder.field("throttled", getThrottled());
+		builder.field("expired", brokerExpired());
+		builder.endObject();
+
+		builder.startObject("admission");
+		builder.field("inflight", admission.inflight());
+		builder.field("rejected", admission.rejected());
+		builder.field("expired", admission.expired());
+		builder.endObject();
+
+		builder.startObject("workers");
+		for (Map.Entry<Integer, WorkerStats> worker : workers.entrySet()) {
+			builder.startObject(String.valueOf(worker.getKey()));
+			builder.field("lane", worker.getValue().lane.lowercase());
+			builder.field("requests", worker.getValue().requests.count());
+			builder.field("errors", worker.getValue().errors.count());
+			builder.endObject();
+		}
+		builder.endObject();
+
+		ZMQRestImpl restClient = client;
+		ZMQResponseCache responseCache = (restClient != null) ? restClient.cache() : null;
+		if ((responseCache != null) && responseCache.enabled()) {
+			builder.startObject("cache");
+			builder.field("entries", responseCache.entries());
+			builder.field("bytes", responseCache.bytes());
+			builder.field("hits", responseCache.hits());
+			builder.field("misses", responseCache.misses());
+			builder.field("evictions", responseCache.evictions());
+			builder.field("invalidations", responseCache.invalidations());
+			builder.endObject();
+		}
+
+		if ((restClient != null) && restClient.coalesce()) {
+			builder.startObject("coalescing");
+			builder.field("coalesced", restClient.coalesced());
+			builder.field("in_flight", restClient.flights());
+			builder.endObject();
+		}
+
+		ZMQGetBatcher batcher = (restClient != null) ? restClient.batcher() : null;
+		if (batcher != null) {
+			builder.startObject("get_batching");
+			builder.field("batches", batcher.batches());
+			builder.field("batched", batcher.batched());
+			builder.field("fallbacks", batcher.fallbacks());
+			builder.endObject();
+		}
+
+		ZMQIngestSocket ingest = ingestSocket;
+		if (ingest != null) {
+			ZMQBulkProcessor processor = ingest.processor();
+			builder.startObject("ingest");
+			builder.field("received", processor.received());
+			builder.field("rejected", processor.rejected());
+			builder.field("succeeded", processor.succeeded());
+			builder.field("failed", processor.failed());
+			builder.field("bulks", processor.bulks());
+			builder.field("retries", processor.retries());
+			builder.endObject();
+		}
+	}
+
+	@Override
+	public long getRequests() {
+		long total = 0;
+		for (LaneStats stats : lanes) {
+			total += stats.requests.count();
+		}
+		return total;
+	}
+
+	@Override
+	public double getRequestsPerSecond() {
+		double total = 0;
+		for (LaneStats stats : lanes) {
+			total += stats.rate.perSecond();
+		}
+		return total;
+	}
+
+	@Override
+	public long getErrors() {
+		long total = 0;
+		for (LaneStats stats : lanes) {
+			total += stats.errors.count();
+		}
+		return total;
+	}
+
+	@Override
+	public long getBytesReceived() {
+		long total = 0;
+		for (LaneStats stats : lanes) {
+			total += stats.bytesReceived.count();
+		}
+		return total;
+	}
+
+	@Override
+	public long getBytesSent() {
+		long total = 0;
+		for (LaneStats stats : lanes) {
+			total += stats.bytesSent.count();
+		}
+		return total;
+	}
+
+	@Override
+	public double getMeanQueueWait() {
+		double sum = 0;
+		long count = 0;
+		for (LaneStats stats : lanes) {
+			sum += stats.queueWait.mean() * stats.queueWait.count();
+			count += stats.queueWait.count();
+		}
+		return (count > 0) ? sum / count : 0;
+	}
+
+	@Override
+	public double getMeanParseTime() {
+		double sum = 0;
+		long count = 0;
+		for (LaneStats stats : lanes) {
+			sum += stats.parseTime.mean() * stats.parseTime.count();
+			count += stats.parseTime.count();
+		}
+		return (count > 0) ? sum / count : 0;
+	}
+
+	@Override
+	public double getMeanDispatchTime() {
+		double sum = 0;
+		long count = 0;
+		for (LaneStats stats : lanes) {
+			sum += stats.dispatchTime.mean() * stats.dispatchTime.count();
+			count += stats.dispatchTime.count();
+		}
+		return (count > 0) ? sum / count : 0;
+	}
+
+	@Override
+	public long getDispatchTime99thPercentile() {
+		long max = 0;
+		for (LaneStats stats : lanes) {
+			max = Math.max(max, stats.dispatchTime.percentile(99));
+		}
+		return max;
+	}
+
+	@Override
+	public double getMeanReplySize() {
+		double sum = 0;
+		long count = 0;
+		for (LaneStats stats : lanes) {
+			sum += stats.replySize.mean() * stats.replySize.count();
+			count += stats.replySize.count();
+		}
+		return (count > 0) ? sum / count : 0;
+	}
+
+	@Override
+	public int getQueueDepth() {
+		int total = 0;
+		for (ZMQBroker broker : brokers) {
+			total += broker.queueDepth();
+		}
+		return total;
+	}
+
+	@Override
+	public int getPeakQueueDepth() {
+		int max = 0;
+		for (ZMQBroker broker : brokers) {
+			max = Math.max(max, broker.peakQueueDepth());
+		}
+		return max;
+	}
+
+	@Override
+	public int getWorkers() {
+		return workers.size();
+	}
+
+	@Override
+	public int getInflight() {
+		return admission.inflight();
+	}
+
+	@Override
+	public long getRejectedQueueFull() {
+		long total = 0;
+		for (ZMQBroker broker : brokers) {
+			total += broker.rejected();
+		}
+		return total;
+	}
+
+	@Override
+	public long getRejectedInflight() {
+		return admission.rejected();
+	}
+
+	@Override
+	public long getThrottled() {
+		long total = 0;
+		for (ZMQBroker broker : brokers) {
+			total += broker.throttled();
+		}
+		return total;
+	}
+
+	@Override
+	public long getExpired() {
+		return brokerExpired() + admission.expired();
+	}
+
+	private long brokerExpired() {
+		long total = 0;
+		for (ZMQBroker broker : brokers) {
+			total += broker.expired();
+		}
+		return total;
+	}
+
+	private long routed() {
+		long total = 0;
+		for (ZMQBroker broker : brokers) {
+			total += broker.routed();
+		}
+		return total;
+	}
+
+	private int readyWorkers() {
+		int total = 0;
+		for (ZMQBroker broker : brokers) {
+			total += broker.readyWorkers();
+		}
+		return total;
+	}
+
+	private int queueDepth(ZMQLane lane) {
+		int total = 0;
+		for (ZMQBroker broker : brokers) {
+			total += broker.queueDepth(lane);
+		}
+		return total;
+	}
+
+	private int workers(ZMQLane lane) {
+		int total = 0;
+		for (ZMQBroker broker : brokers) {
+			total += broker.workers(lane);
+		}
+		return total;
+	}
+
+	/**
+	 * Counters of a worker, updated by the worker thread and the ES threads
+	 * that complete its async requests
+	 */
+	public static class WorkerStats {
+
+		final ZMQLane lane;
+
+		public final CounterMetric requests = new CounterMetric();
+
+		public final CounterMetric errors = new CounterMetric();
+
+		WorkerStats(ZMQLane lane) {
+			this.lane = lane;
+		}
+	}
+
+	/**
+	 * Metrics of the requests of a lane
+	 */
+	private static class LaneStats {
+
+		final CounterMetric requests = new CounterMetric();
+
+		final CounterMetric errors = new CounterMetric();
+
+		final CounterMetric bytesReceived = new CounterMetric();
+
+		final CounterMetric bytesSent = new CounterMetric();
+
+		final Rate rate = new Rate();
+
+		final ZMQHistogram queueWait = new ZMQHistogram();
+
+		final ZMQHistogram parseTime = new ZMQHistogram();
+
+		final ZMQHistogram dispatchTime = new ZMQHistogram();
+
+		final ZMQHistogram replySize = new ZMQHistogram();
+	}
+
+	/**
+	 * Number of events per second over the last complete seconds, counted in a
+	 * ring of one second slots
+	 */
+	static class Rate {
+
+		private static final int SLOTS = 11;
+
+		private final AtomicLongArray counts = new AtomicLongArray(SLOTS);
+
+		/**
+		 * Second of the events counted in each slot
+		 */
+		private final AtomicLongArray seconds = new AtomicLongArray(SLOTS);
+
+		void inc() {
+			long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+			int slot = (int) (((second % SLOTS) + SLOTS) % SLOTS);
+
+			long previous = seconds.get(slot);
+			if ((previous != second) && seconds.compareAndSet(slot, previous, second)) {
+				counts.set(slot, 0);
+			}
+			counts.incrementAndGet(slot);
+		}
+
+		/**
+		 * @return the mean rate over the last complete seconds (the current
+		 *         second is not counted)
+		 */
+		double perSecond() {
+			long current = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+			long total = 0;
+			for (int i = 0; i < SLOTS; i++) {
+				long second = seconds.get(i);
+				if ((second < current) && (current - second < SLOTS)) {
+					total += counts.get(i);
+				}
+			}
+			return (double) total / (SLOTS - 1);
+		}
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Licensed to Elastic Search and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Elastic Search licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.zeromq;
+
+import static org.elasticsearch.rest.action.support.RestXContentBuilder.restContentBuilder;
+
+import java.io.IOException;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.rest.XContentRestResponse;
+import org.elasticsearch.rest.XContentThrowableRestResponse;
+
+/**
+ * Exposes the {@link ZMQStats} of the node on <code>GET /_zeromq/stats</code>
+ *
+ * @author tlrx
+ */
+public class ZMQStatsRestAction extends BaseRestHandler {
+
+	private final ZMQServerTransport transport;
+
+	@Inject
+	public ZMQStatsRestAction(Settings settings, Client client, RestController controller, ZMQServerTransport transport) {
+		super(settings, client);
+		this.transport = transport;
+		controller.registerHandler(RestRequest.Method.GET, "/_zeromq/stats", this);
+	}
+
+	@Override
+	public void handleRequest(RestRequest request, RestChannel channel) {
+		try {
+			XContentBuilder builder = restContentBuilder(request);
+			builder.startObject();
+			transport.stats().toXContent(builder);
+			builder.endObject();
+			channel.sendResponse(new XContentRestResponse(request, RestStatus.OK, builder));
+
+		} catch (Exception e) {
+			try {
+				channel.sendResponse(new XContentThrowableRestResponse(request, e));
+			} catch (IOException e1) {
+				logger.error("Failed to send failure response", e1);
+			}
+		}
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * Licensed to Elastic Search and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Elastic Search licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.zeromq;
+
+/**
+ * Timestamps ({@link System#nanoTime()}) of the phases of a sampled request,
+ * from its reception by the broker to the sending of its reply. A phase that
+ * did not happen (ex: the request could not be parsed) has a 0 timestamp.
+ *
+ * @author tlrx
+ */
+public class ZMQTrace {
+
+	/**
+	 * The request is received by the broker
+	 */
+	public static final int RECEIVED = 0;
+
+	/**
+	 * The request is received by a worker
+	 */
+	public static final int DEQUEUED = 1;
+
+	/**
+	 * The ES request is built
+	 */
+	public static final int PARSED = 2;
+
+	/**
+	 * ES sends its response
+	 */
+	public static final int RESPONDED = 3;
+
+	/**
+	 * The reply frames are assembled
+	 */
+	public static final int ASSEMBLED = 4;
+
+	/**
+	 * The reply is sent to the broker (to the reply channel of the worker in
+	 * async mode)
+	 */
+	public static final int SENT = 5;
+
+	static final String[] NAMES = { "received", "queue", "parse", "es", "assemble", "send" };
+
+	private final long[] times = new long[NAMES.length];
+
+	public ZMQTrace(long received, long dequeued) {
+		times[RECEIVED] = received;
+		times[DEQUEUED] = dequeued;
+	}
+
+	public void mark(int phase) {
+		times[phase] = System.nanoTime();
+	}
+
+	public long time(int phase) {
+		return times[phase];
+	}
+
+	/**
+	 * @return the time between the previous phase that happened and the
+	 *         given phase, or -1 if the given phase did not happen
+	 */
+	public long duration(int phase) {
+		if (times[phase] == 0) {
+			return -1;
+		}
+		for (int i = phase - 1; i >= 0; i--) {
+			if (times[i] != 0) {
+				return times[phase] - times[i];
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the time between the first and the last phases that happened
+	 */
+	public long total() {
+		long first = 0;
+		long last = 0;
+		for (long time : times) {
+			if (time != 0) {
+				if (first == 0) {
+					first = time;
+				}
+				last = time;
+			}
+		}
+		return last - first;
+	}
+}
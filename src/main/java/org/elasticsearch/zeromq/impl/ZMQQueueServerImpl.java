@@ -5,12 +5,16 @@ package org.elasticsearch.zeromq.impl;
 
 import static org.elasticsearch.common.util.concurrent.EsExecutors.daemonThreadFactory;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.elasticsearch.ElasticSearchException;
 import org.elasticsearch.common.component.AbstractLifecycleComponent;
@@ -19,19 +23,28 @@ import org.elasticsearch.common.network.NetworkService;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.transport.BoundTransportAddress;
 import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.env.NodeEnvironment;
 import org.elasticsearch.http.BindHttpException;
 import org.elasticsearch.node.service.NodeService;
 import org.elasticsearch.transport.BindTransportException;
+import org.elasticsearch.zeromq.ZMQAdmissionControl;
+import org.elasticsearch.zeromq.ZMQBroker;
+import org.elasticsearch.zeromq.ZMQIngestSocket;
 import org.elasticsearch.zeromq.ZMQRestImpl;
 import org.elasticsearch.zeromq.ZMQServerTransport;
-import org.elasticsearch.zeromq.ZMQSocket;
 import org.elasticsearch.zeromq.network.ZMQAddressHelper;
+import org.elasticsearch.zeromq.ZMQSlowLog;
+import org.elasticsearch.zeromq.ZMQStats;
 import org.zeromq.ZMQ;
-import org.zeromq.ZMQQueue;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
- * Implementation of {@link ZMQServerTransport} based on a Router-Dealer-Queue
- * pattern.
+ * Implementation of {@link ZMQServerTransport} based on Router-Router
+ * load-balancing brokers (see {@link ZMQBroker}). The router endpoints are
+ * spread over independent shards, each one with its own broker thread and
+ * workers (see {@link ZMQShard}).
  * 
  * @author tlrx
  * 
@@ -40,55 +53,73 @@ public class ZMQQueueServerImpl extends
 		AbstractLifecycleComponent<ZMQServerTransport> implements
 		ZMQServerTransport {
 
-	final String routerBinding;
+	final List<String> routerBindings;
+
+	final int nbShards;
+
+	final int ioThreads;
 
 	final int nbWorkers;
 
 	final String workersBinding;
 
-	private final ZMQ.Context context;
+	final boolean async;
 
-    private ZMQ.Socket dealer;
 
-    private ZMQ.Socket router;
+	private final ZMQ.Context context;
 
-    private  Thread queueThread;
+    private final CopyOnWriteArrayList<ZMQShard> shards = new CopyOnWriteArrayList<ZMQShard>();
 
     private final ZMQRestImpl client;
 
-	private CopyOnWriteArrayList<ZMQSocket> sockets = new CopyOnWriteArrayList<ZMQSocket>();
+    private final ZMQAdmissionControl admission;
+
+    private final ZMQStats stats;
+
+    private final ZMQSlowLog slowLog;
+
+    private ObjectName mbeanName;
+
+    private ZMQIngestSocket ingestSocket;
 
     private final NetworkService networkService;
 
     private final NodeService nodeService;
 
+    private final NodeEnvironment nodeEnvironment;
+
     private volatile BoundTransportAddress boundAddress;
 
     private final AtomicBoolean isRunning;
 
-    public static final String ZMQ_STOP_SOCKET = "stop";
-
-    private static volatile CountDownLatch waitForSocketsClose;
-
 	@Inject
-	protected ZMQQueueServerImpl(Settings settings, NodeService nodeService, ZMQRestImpl client, NetworkService networkService) {
+	protected ZMQQueueServerImpl(Settings settings, NodeService nodeService, ZMQRestImpl client, NetworkService networkService, NodeEnvironment nodeEnvironment) {
 		super(settings);
 		this.client = client;
         this.networkService = networkService;
         this.nodeService = nodeService;
+        this.nodeEnvironment = nodeEnvironment;
 		
 		logger.debug("Reading ØMQ transport layer settings...");
 
-		routerBinding = settings.get("zeromq.router.bind", "tcp://127.0.0.1:9700");
+		routerBindings = ZMQAddressHelper.expand(settings.getAsArray("zeromq.router.bind", new String[] { "tcp://127.0.0.1:9700" }));
+		nbShards = Math.max(1, Math.min(settings.getAsInt("zeromq.router.shards", routerBindings.size()), routerBindings.size()));
+		ioThreads = settings.getAsInt("zeromq.io_threads", nbShards);
 		nbWorkers = settings.getAsInt("zeromq.workers.threads", 3);
 		workersBinding = settings.get("zeromq.workers.bind", "inproc://es_zeromq_workers");
+		async = settings.getAsBoolean("zeromq.workers.async", false);
 
 		logger.debug(
-				"ØMQ settings [zeromq.router.bind={}, zeromq.workers.threads={}, zeromq.workers.bind={}]",
-				routerBinding, nbWorkers, workersBinding);
+				"ØMQ settings [zeromq.router.bind={}, zeromq.router.shards={}, zeromq.io_threads={}, zeromq.workers.threads={}, zeromq.workers.bind={}, zeromq.workers.async={}]",
+				routerBindings, nbShards, ioThreads, nbWorkers, workersBinding, async);
+
+		admission = new ZMQAdmissionControl(logger, settings);
+		stats = new ZMQStats(admission);
+		stats.setClient(client);
+		slowLog = new ZMQSlowLog(settings);
 
 		logger.info("Creating ØMQ server context...");
-		context = ZMQ.context(1);
+		context = ZMQ.context(ioThreads);
 
         isRunning = new AtomicBoolean(true);
 	}
@@ -96,10 +127,6 @@ public class ZMQQueueServerImpl extends
 	@Override
 	protected void doStart() throws ElasticSearchException {
 
-		logger.debug("Starting ØMQ dealer socket...");
-		dealer = context.socket(ZMQ.DEALER);
-		dealer.bind(workersBinding);
-
         InetSocketAddress bindAddress;
         try {
             bindAddress = new InetSocketAddress(networkService.resolveBindHostAddress(ZMQAddressHelper.getHostName(workersBinding)), ZMQAddressHelper.getPort(workersBinding));
@@ -107,21 +134,25 @@ public class ZMQQueueServerImpl extends
             throw new BindHttpException("Failed to resolve host [" + workersBinding + "]", e);
         }
 
-        waitForSocketsClose = new CountDownLatch(nbWorkers);
-
-		for (int i = 0; i < nbWorkers; i++) {
+        AtomicInteger workerIds = new AtomicInteger();
 
-			logger.debug("Creating worker #{}", i);
-			ZMQSocket worker = new ZMQSocket(logger, context, workersBinding, i, client, isRunning, waitForSocketsClose);
+        for (int i = 0; i < nbShards; i++) {
+            // Endpoints are spread evenly over the shards
+            List<String> bindings = new ArrayList<String>();
+            for (int j = i; j < routerBindings.size(); j += nbShards) {
+                bindings.add(routerBindings.get(j));
+            }
 
-			daemonThreadFactory(settings, "zeromq_worker_" + i).newThread(worker).start();
+            // Each shard has its own share of the I/O threads
+            long affinity = (ioThreads > 1) ? (1L << (i % Math.min(ioThreads, 64))) : 0;
 
-			sockets.add(worker);
-		}
+            ZMQShard shard = new ZMQShard(logger, settings, context, i, bindings, (nbShards > 1) ? workersBinding + "_" + i : workersBinding,
+                    async, affinity, workerIds);
+            shard.start(client, admission, stats, slowLog, isRunning);
+            shards.add(shard);
+        }
 
-		logger.debug("Starting ØMQ router socket...");
-		router = context.socket(ZMQ.ROUTER);
-		router.bind(routerBinding);
+        String routerBinding = routerBindings.get(0);
 
         InetSocketAddress publishAddress;
         try {
@@ -134,11 +165,24 @@ public class ZMQQueueServerImpl extends
         if (logger.isInfoEnabled()) {
             logger.info("{}", this.boundAddress);
         }
-        nodeService.putAttribute("zeromq_address", this.boundAddress.publishAddress().toString());
+        if (nodeService != null) {
+            nodeService.putAttribute("zeromq_address", this.boundAddress.publishAddress().toString());
+        }
 
-        logger.debug("Starting ØMQ queue...");
-        queueThread = new Thread(new ZMQQueue(context, router, dealer));
-        queueThread.start();
+        if (client.batcher() != null) {
+            daemonThreadFactory(settings, "zeromq_get_batcher").newThread(client.batcher()).start();
+        }
+
+        if (settings.get("zeromq.ingest.bind") != null) {
+            logger.debug("Starting ØMQ ingest socket...");
+            ingestSocket = new ZMQIngestSocket(logger, settings, context, client, isRunning, spoolDirectory());
+            daemonThreadFactory(settings, "zeromq_ingest").newThread(ingestSocket).start();
+            stats.setIngestSocket(ingestSocket);
+        }
+
+        if (settings.getAsBoolean("zeromq.stats.jmx", true)) {
+            registerMBean();
+        }
 
         logger.info("ØMQ server started");
 	}
@@ -147,39 +191,89 @@ public class ZMQQueueServerImpl extends
 	protected void doClose() throws ElasticSearchException {
 		logger.info("Closing ØMQ server...");
 
-        // After next incoming message, sockets will close themselves
+        // The brokers send a stop message to the workers, then close the
+        // router and backend sockets
         isRunning.set(false);
 
-        while(ZMQQueueServerImpl.waitForSocketsClose.getCount() > 0){
-        	
-            // Let's send a stop message to the sockets
-            dealer.send(ZMQ_STOP_SOCKET.getBytes(), 0);
+        for (ZMQShard shard : shards) {
+            try {
+                if (!shard.awaitClose(15, TimeUnit.SECONDS)) {
+                    logger.warn("Timeout when closing ØMQ broker of shard #{}", shard.id);
+                }
+            } catch (InterruptedException e) {
+                // nothing
+            }
+        }
 
-            // Wait a few
+        // Waits for the ingest socket to flush its buffer
+        if (ingestSocket != null) {
             try {
-                waitForSocketsClose.await(50, TimeUnit.MILLISECONDS);
+                if (!ingestSocket.awaitClose(15, TimeUnit.SECONDS)) {
+                    logger.warn("Timeout when closing ØMQ ingest socket");
+                }
             } catch (InterruptedException e) {
                 // nothing
             }
+        }
 
-            // Receive a response... or not
-            dealer.recv(ZMQ.NOBLOCK);
+        // Sends the gets batched by the workers
+        if (client.batcher() != null) {
+            client.batcher().close();
+            try {
+                if (!client.batcher().awaitClose(15, TimeUnit.SECONDS)) {
+                    logger.warn("Timeout when closing ØMQ get batcher");
+                }
+            } catch (InterruptedException e) {
+                // nothing
+            }
         }
 
-        // Stops the queue
-        queueThread.interrupt();
-        logger.info("ØMQ queue thread interrupted");
+		context.term();
+		logger.info("ØMQ server closed");
 
-        // Stop the router socket, no accept message anymore
-        router.close();
-        logger.info("ØMQ router socket closed");
+		if (mbeanName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+			} catch (Exception e) {
+				logger.debug("Failed to unregister ØMQ stats MBean", e);
+			}
+		}
+	}
 
-        // Close dealer socket
-        dealer.close();
-        logger.info("ØMQ dealer socket closed");
+	/**
+	 * Exposes the stats through JMX, with the node name in the object name
+	 * so that several nodes can run in the same JVM
+	 */
+	private void registerMBean() {
+		try {
+			String node = settings.get("name", "default");
+			ObjectName name = new ObjectName("org.elasticsearch.zeromq:type=Stats,node=" + ObjectName.quote(node));
+
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			server.registerMBean(stats, name);
+			mbeanName = name;
+
+		} catch (Exception e) {
+			logger.warn("Failed to register ØMQ stats MBean", e);
+		}
+	}
 
-		context.term();
-		logger.info("ØMQ server closed");
+	/**
+	 * @return the directory of the ingest spool, or null if the spool is disabled
+	 */
+	private File spoolDirectory() {
+		if (!settings.getAsBoolean("zeromq.ingest.spool.enabled", false)) {
+			return null;
+		}
+		String path = settings.get("zeromq.ingest.spool.path");
+		if (path != null) {
+			return new File(path);
+		}
+		if (!nodeEnvironment.hasNodeFile()) {
+			logger.warn("No data location available, the ØMQ ingest spool is disabled");
+			return null;
+		}
+		return new File(new File(nodeEnvironment.nodeDataLocations()[0], "zeromq"), "spool");
 	}
 
 	@Override
@@ -190,4 +284,18 @@ public class ZMQQueueServerImpl extends
     @Override public BoundTransportAddress boundAddress() {
         return boundAddress;
     }
+
+    @Override public ZMQStats stats() {
+        return stats;
+    }
+
+    @Override public int queueDepth() {
+        int depth = 0;
+        for (ZMQShard shard : shards) {
+            if (shard.broker() != null) {
+                depth += shard.broker().queueDepth();
+            }
+        }
+        return depth;
+    }
 }
@@ -0,0 +1,157 @@
+/*
+ * Licensed to Elastic Search and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Elastic Search licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.zeromq.impl;
+
+import static org.elasticsearch.common.util.concurrent.EsExecutors.daemonThreadFactory;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.zeromq.ZMQAdmissionControl;
+import org.elasticsearch.zeromq.ZMQBroker;
+import org.elasticsearch.zeromq.ZMQLane;
+import org.elasticsearch.zeromq.ZMQRestImpl;
+import org.elasticsearch.zeromq.ZMQSlowLog;
+import org.elasticsearch.zeromq.ZMQSocket;
+import org.elasticsearch.zeromq.ZMQStats;
+import org.zeromq.ZMQ;
+
+/**
+ * Independent set of a ROUTER socket (bound to one or more endpoints), a
+ * {@link ZMQBroker} running in its own thread and its workers, grouped by
+ * {@link ZMQLane} and started by the broker.
+ *
+ * @author tlrx
+ */
+public class ZMQShard implements ZMQBroker.WorkerFactory {
+
+	private final ESLogger logger;
+
+	private final Settings settings;
+
+	private final ZMQ.Context context;
+
+	final int id;
+
+	final List<String> routerBindings;
+
+	final String workersBinding;
+
+	final boolean async;
+
+	/**
+	 * Bitmask of the context I/O threads that handle the client connections,
+	 * or 0 for all the I/O threads
+	 */
+	final long affinity;
+
+	/**
+	 * Generator of the worker IDs, shared by all the shards
+	 */
+	private final AtomicInteger workerIds;
+
+	private final AtomicInteger openWorkers = new AtomicInteger();
+
+	private ZMQRestImpl client;
+
+	private ZMQAdmissionControl admission;
+
+	private ZMQStats stats;
+
+	private ZMQSlowLog slowLog;
+
+	private AtomicBoolean isRunning;
+
+	private ZMQBroker broker;
+
+	public ZMQShard(ESLogger logger, Settings settings, ZMQ.Context context, int id, List<String> routerBindings, String workersBinding,
+			boolean async, long affinity, AtomicInteger workerIds) {
+		this.logger = logger;
+		this.settings = settings;
+		this.context = context;
+		this.id = id;
+		this.routerBindings = routerBindings;
+		this.workersBinding = workersBinding;
+		this.async = async;
+		this.affinity = affinity;
+		this.workerIds = workerIds;
+	}
+
+	/**
+	 * Binds the sockets and starts the broker, which starts the workers
+	 */
+	public void start(ZMQRestImpl client, ZMQAdmissionControl admission, ZMQStats stats, ZMQSlowLog slowLog, AtomicBoolean isRunning) {
+		this.client = client;
+		this.admission = admission;
+		this.stats = stats;
+		this.slowLog = slowLog;
+		this.isRunning = isRunning;
+
+		logger.debug("Starting ØMQ backend socket of shard #{} on {}...", id, workersBinding);
+		ZMQ.Socket backend = context.socket(ZMQ.ROUTER);
+		backend.setLinger(0);
+		backend.bind(workersBinding);
+
+		logger.debug("Starting ØMQ router socket of shard #{} on {}...", id, routerBindings);
+		ZMQ.Socket router = context.socket(ZMQ.ROUTER);
+		if (affinity != 0) {
+			router.setAffinity(affinity);
+		}
+		for (String binding : routerBindings) {
+			router.bind(binding);
+		}
+
+		broker = new ZMQBroker(logger, settings, context, router, backend, this, isRunning);
+		stats.addBroker(broker);
+		daemonThreadFactory(settings, "zeromq_broker_" + id).newThread(broker).start();
+	}
+
+	@Override
+	public void startWorker(ZMQLane lane) {
+		int workerId = workerIds.getAndIncrement();
+
+		logger.debug("Creating worker #{} for lane {}", workerId, lane.lowercase());
+		ZMQSocket worker = new ZMQSocket(logger, context, workersBinding, workerId, lane, client, admission, stats, slowLog, isRunning, openWorkers, async);
+		openWorkers.incrementAndGet();
+
+		String name = (lane == ZMQLane.DEFAULT) ? "zeromq_worker_" + workerId : "zeromq_" + lane.lowercase() + "_worker_" + workerId;
+		daemonThreadFactory(settings, name).newThread(worker).start();
+	}
+
+	@Override
+	public int openWorkers() {
+		return openWorkers.get();
+	}
+
+	/**
+	 * Waits for the broker to stop the workers and close its sockets
+	 */
+	public boolean awaitClose(long timeout, TimeUnit unit) throws InterruptedException {
+		return (broker == null) || broker.awaitClose(timeout, unit);
+	}
+
+	public ZMQBroker broker() {
+		return broker;
+	}
+}
@@ -19,6 +19,9 @@
 
 package org.elasticsearch.zeromq.network;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * @author tlrx
  */
@@ -117,4 +120,36 @@ public class ZMQAddressHelper {
 
     }
 
+    /**
+     * Expands the port ranges of the given addresses: tcp://*:9700-9702 gives
+     * tcp://*:9700, tcp://*:9701 and tcp://*:9702
+     */
+    public static List<String> expand(String... addresses) {
+        List<String> expanded = new ArrayList<String>();
+
+        for (String address : addresses) {
+            String a = address.trim();
+            if (a.length() == 0) {
+                continue;
+            }
+
+            int colon = a.lastIndexOf(':');
+            int dash = a.lastIndexOf('-');
+            if (a.startsWith("tcp:") && (colon > 0) && (dash > colon)) {
+                try {
+                    int from = Integer.parseInt(a.substring(colon + 1, dash));
+                    int to = Integer.parseInt(a.substring(dash + 1));
+                    for (int port = from; port <= to; port++) {
+                        expanded.add(a.substring(0, colon + 1) + port);
+                    }
+                    continue;
+                } catch (NumberFormatException e) {
+                    // Not a port range, the address is used as is
+                }
+            }
+            expanded.add(a);
+        }
+        return expanded;
+    }
+
 }
@@ -0,0 +1,152 @@
+package org.elasticsearch.zeromq.test;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeBuilder;
+import org.elasticsearch.zeromq.ZMQSocket;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.zeromq.ZMQ;
+
+/**
+ * Starts an ES node with the ØMQ transport for the tests of a class
+ */
+public abstract class AbstractZMQTransportTest {
+
+	protected static Node node = null;
+
+	protected static ZMQ.Context context = null;
+
+	/*
+	 * ØMQ Socket binding adress, must be coherent with the settings of the node
+	 */
+	protected static String address = null;
+
+	/**
+	 * Instantiates an ES server configured by elasticsearch.yml, the given
+	 * settings override the ones of the file
+	 */
+	protected static void startNode(String routerAddress, Settings settings) {
+		node = NodeBuilder.nodeBuilder()
+				.settings(
+						ImmutableSettings.settingsBuilder()
+						.put("es.config", "elasticsearch.yml")
+						.put(settings)
+						).node();
+		address = routerAddress;
+
+		// Instantiate a ZMQ context
+		context = ZMQ.context(1);
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		if(node != null){
+			node.close();
+		}
+
+		try {
+			context.term();
+		} catch (Exception e2) {
+			// ignore
+		}
+	}
+
+	/**
+	 * Simple method to send & receive zeromq message
+	 * 
+	 * @param method
+	 * @param uri
+	 * @param json
+	 * @return
+	 */
+	protected String sendAndReceive(String method, String uri, String json){
+
+		ZMQ.Socket socket = context.socket(ZMQ.DEALER);
+		socket.connect(address);
+
+		// Handshake
+		try {
+			Thread.sleep(100);
+		} catch (Exception e) {
+			Assert.fail("Handshake failed");
+		}
+
+		StringBuilder sb = new StringBuilder(method);
+		sb.append(ZMQSocket.SEPARATOR).append(uri).append(ZMQSocket.SEPARATOR);
+		
+		if(json != null){
+			sb.append(json);	
+		}
+
+		String result = null;
+		try {
+			socket.send(sb.toString().getBytes("UTF-8"), 0);
+
+			byte[] response = socket.recv(0);
+			result = new String(response, Charset.forName("UTF-8"));
+
+		} catch (UnsupportedEncodingException e) {
+			Assert.fail("Exception when sending/receiving message");
+		} finally {
+			try {
+				socket.close();
+			} catch (Exception e2) {
+				// ignore
+			}
+		}
+		return result;
+	}
+	
+	
+	/**
+	 * Sends & receives a multipart (protocol V2) zeromq message
+	 *
+	 * @return the reply frames, without the empty delimiter frame
+	 */
+	protected List<byte[]> sendAndReceiveMultipart(String method, String uri, String headers, String json){
+
+		ZMQ.Socket socket = context.socket(ZMQ.DEALER);
+		socket.connect(address);
+
+		// Handshake
+		try {
+			Thread.sleep(100);
+		} catch (Exception e) {
+			Assert.fail("Handshake failed");
+		}
+
+		List<byte[]> result = new ArrayList<byte[]>();
+		try {
+			socket.send(new byte[0], ZMQ.SNDMORE);
+			socket.send(method.getBytes("UTF-8"), ZMQ.SNDMORE);
+			socket.send(uri.getBytes("UTF-8"), ZMQ.SNDMORE);
+			if(headers != null){
+				socket.send(headers.getBytes("UTF-8"), ZMQ.SNDMORE);
+			}
+			socket.send((json != null) ? json.getBytes("UTF-8") : new byte[0], 0);
+
+			do {
+				result.add(socket.recv(0));
+			} while (socket.hasReceiveMore());
+
+		} catch (UnsupportedEncodingException e) {
+			Assert.fail("Exception when sending/receiving message");
+		} finally {
+			try {
+				socket.close();
+			} catch (Exception e2) {
+				// ignore
+			}
+		}
+
+		Assert.assertEquals("Reply should start with the delimiter frame", 0, result.get(0).length);
+		return result.subList(1, result.size());
+	}
+}
@@ -9,7 +9,8 @@ import org.elasticsearch.zeromq.ZMQSocket;
 import org.zeromq.ZMQ;
 
 /**
- * A simple ØMQ client (XREQ)
+ * A simple ØMQ client (XREQ) that sends one message, see
+ * {@link ZMQLoadGenerator} to send a lot of messages
  * 
  * @author tlrx
  * 
@@ -22,14 +23,10 @@ public class SimpleClient {
 	 * @return
 	 * @throws UnsupportedEncodingException 
 	 */
-	private static byte[] format(String method, String url, String json, Integer count) throws UnsupportedEncodingException {
+	private static byte[] format(String method, String url, String json) throws UnsupportedEncodingException {
 		StringBuilder sb = new StringBuilder(method);
 		sb.append(ZMQSocket.SEPARATOR);
-		if (count != null) {
-			sb.append(url).append(count);
-		} else {
-			sb.append(url);
-		}
+		sb.append(url);
 		sb.append(ZMQSocket.SEPARATOR);
 
 		if (json != null) {
@@ -45,7 +42,7 @@ public class SimpleClient {
 
 		if (args == null || args.length < 3) {
 			System.err
-					.println("Usage: SimpleClient <address> <method> <url> <json> <repeat time>");
+					.println("Usage: SimpleClient <address> <method> <url> <json>");
 			return;
 		}
 
@@ -54,13 +51,9 @@ public class SimpleClient {
 		String method = args[1];
 		String url = args[2];
 		String json = null;
-		Integer repeat = 1;
 		if(args.length > 3){
 			json = args[3];	
 		}
-		if(args.length > 4){
-			repeat = Integer.parseInt(args[4]);	
-		}
 		
 		final ZMQ.Context context = ZMQ.context(1);
 		ZMQ.Socket socket = context.socket(ZMQ.DEALER);
@@ -73,28 +66,12 @@ public class SimpleClient {
 			e.printStackTrace();
 		}
 
-		long startTime =  System.currentTimeMillis();
-		try {			
-			
-			// Send one message
-			if(repeat == 1){
-				socket.send(format(method, url, json, null), 0);
+		try {
+			socket.send(format(method, url, json), 0);
 
-				byte[] response = socket.recv(0);
-				System.out.println("Response: \r\n" + new String(response, "UTF-8"));
-		
-			// Send a lot of messages
-			} else {
-				for (int i = 0; i < repeat; i++) {					
-					byte[] message = format(method, url, json, i);
-					socket.send(message, ZMQ.NOBLOCK);
+			byte[] response = socket.recv(0);
+			System.out.println("Response: \r\n" + new String(response, "UTF-8"));
 
-					byte[] response = socket.recv(ZMQ.NOBLOCK);
-					if ((response != null) && (response.length > 0)) {
-						System.out.println("Response: \r\n" + new String(response, "UTF-8"));
-					}
-				}
-			}
 		} catch (UnsupportedEncodingException e) {
 			e.printStackTrace();
 		} finally {
@@ -108,8 +85,6 @@ public class SimpleClient {
 			} catch (Exception e2) {
 				// ignore
 			}
-			
-			System.out.printf("%d message(s) sent in %dms", repeat, System.currentTimeMillis()-startTime);
 		}
 	}
 }
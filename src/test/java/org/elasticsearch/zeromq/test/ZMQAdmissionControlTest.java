@@ -0,0 +1,115 @@
+package org.elasticsearch.zeromq.test;
+
+import org.elasticsearch.common.Unicode;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.rest.RestRequest.Method;
+import org.elasticsearch.zeromq.ZMQAdmissionControl;
+import org.elasticsearch.zeromq.ZMQLane;
+import org.elasticsearch.zeromq.ZMQProtocol;
+import org.elasticsearch.zeromq.ZMQRestRequest;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ZMQAdmissionControlTest {
+
+	private static ZMQAdmissionControl admission(ImmutableSettings.Builder settings) {
+		return new ZMQAdmissionControl(Loggers.getLogger(ZMQAdmissionControlTest.class), settings.build());
+	}
+
+	private static ZMQRestRequest request(Method method, String uri) {
+		return new ZMQRestRequest(method, uri, null);
+	}
+
+	@Test
+	public void testUnlimited() {
+		ZMQAdmissionControl admission = admission(ImmutableSettings.settingsBuilder());
+		for (int i = 0; i < 100; i++) {
+			Assert.assertEquals(ZMQLane.DEFAULT, admission.acquire(request(Method.GET, "/twitter/_search")));
+		}
+		Assert.assertEquals(100, admission.inflight());
+		Assert.assertEquals(0, admission.rejected());
+	}
+
+	@Test
+	public void testGlobalLimit() {
+		ZMQAdmissionControl admission = admission(ImmutableSettings.settingsBuilder().put("zeromq.admission.max_inflight", 2));
+
+		ZMQLane first = admission.acquire(request(Method.GET, "/twitter/_search"));
+		ZMQLane second = admission.acquire(request(Method.GET, "/twitter/tweet/1"));
+		Assert.assertNotNull(first);
+		Assert.assertNotNull(second);
+		Assert.assertNull(admission.acquire(request(Method.GET, "/twitter/tweet/2")));
+		Assert.assertEquals(2, admission.inflight());
+		Assert.assertEquals(1, admission.rejected());
+
+		admission.release(first);
+		Assert.assertEquals(1, admission.inflight());
+		Assert.assertNotNull(admission.acquire(request(Method.GET, "/twitter/tweet/2")));
+		Assert.assertEquals(2, admission.inflight());
+	}
+
+	@Test
+	public void testLaneLimit() {
+		ZMQAdmissionControl admission = admission(ImmutableSettings.settingsBuilder().put("zeromq.lanes.search.max_inflight", 1));
+
+		ZMQLane search = admission.acquire(request(Method.GET, "/twitter/_search"));
+		Assert.assertEquals(ZMQLane.SEARCH, search);
+		Assert.assertNull(admission.acquire(request(Method.POST, "/twitter/_count")));
+
+		// Other lanes are not limited
+		Assert.assertEquals(ZMQLane.GET, admission.acquire(request(Method.GET, "/twitter/tweet/1")));
+		Assert.assertEquals(ZMQLane.GET, admission.acquire(request(Method.GET, "/twitter/tweet/2")));
+		Assert.assertEquals(3, admission.inflight());
+		Assert.assertEquals(1, admission.rejected());
+
+		admission.release(search);
+		Assert.assertEquals(ZMQLane.SEARCH, admission.acquire(request(Method.POST, "/twitter/_count")));
+	}
+
+	@Test
+	public void testLaneRejectionReleasesGlobalPermit() {
+		ZMQAdmissionControl admission = admission(ImmutableSettings.settingsBuilder()
+				.put("zeromq.admission.max_inflight", 2)
+				.put("zeromq.lanes.search.max_inflight", 1));
+
+		Assert.assertNotNull(admission.acquire(request(Method.GET, "/twitter/_search")));
+		Assert.assertNull(admission.acquire(request(Method.GET, "/twitter/_search")));
+		Assert.assertEquals(1, admission.inflight());
+		Assert.assertNotNull(admission.acquire(request(Method.GET, "/twitter/tweet/1")));
+	}
+
+	@Test
+	public void testReleaseOnDispatchFailure() {
+		ZMQAdmissionControl admission = admission(ImmutableSettings.settingsBuilder()
+				.put("zeromq.admission.max_inflight", 1)
+				.put("zeromq.lanes.get.max_inflight", 1));
+
+		// The workers give back the permit when the dispatch throws, both the
+		// global and the lane counts must be decremented
+		ZMQLane permit = admission.acquire(request(Method.GET, "/twitter/tweet/1"));
+		Assert.assertNull(admission.acquire(request(Method.GET, "/twitter/tweet/2")));
+		admission.release(permit);
+		Assert.assertEquals(0, admission.inflight());
+		Assert.assertEquals(ZMQLane.GET, admission.acquire(request(Method.GET, "/twitter/tweet/1")));
+		Assert.assertEquals(1, admission.rejected());
+	}
+
+	@Test
+	public void testRejection() {
+		ZMQAdmissionControl admission = admission(ImmutableSettings.settingsBuilder());
+		String content = "{\"error\":\"Too many requests in progress\",\"status\":429}";
+
+		byte[][] v1 = admission.rejection(ZMQProtocol.V1);
+		Assert.assertEquals(1, v1.length);
+		Assert.assertEquals("429|TOO_MANY_REQUESTS|" + content, Unicode.fromBytes(v1[0]));
+
+		byte[][] v2 = admission.rejection(ZMQProtocol.V2);
+		Assert.assertEquals(2, v2.length);
+		Assert.assertEquals(ZMQProtocol.TOO_MANY_REQUESTS, ZMQProtocol.decodeStatus(v2[0]));
+		Assert.assertEquals(content, Unicode.fromBytes(v2[1]));
+
+		// Unknown protocols are answered in V1
+		Assert.assertSame(v1, admission.rejection(-1));
+	}
+}
@@ -0,0 +1,133 @@
+package org.elasticsearch.zeromq.test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.elasticsearch.common.compress.lzf.LZFDecoder;
+import org.elasticsearch.common.compress.lzf.LZFEncoder;
+import org.elasticsearch.zeromq.ZMQCompression;
+import org.elasticsearch.zeromq.exception.ZMQContentTooLargeException;
+import org.elasticsearch.zeromq.exception.ZMQTransportException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ZMQCompressionTest {
+
+	private static byte[] json(int length) {
+		StringBuilder sb = new StringBuilder();
+		int i = 0;
+		while (sb.length() < length) {
+			sb.append("{\"_index\":\"twitter\",\"_type\":\"tweet\",\"_id\":\"").append(i++).append("\",\"_source\":{\"user\":\"kimchy\"}},");
+		}
+		return sb.substring(0, length).getBytes();
+	}
+
+	private static byte[] random(int length) {
+		byte[] data = new byte[length];
+		new Random(42).nextBytes(data);
+		return data;
+	}
+
+	private static void assertRoundTrip(String encoding, byte[] data) {
+		byte[] compressed = ZMQCompression.compress(encoding, data, 0, data.length);
+		Assert.assertArrayEquals(data, ZMQCompression.decompress(encoding, compressed, 0, compressed.length, Integer.MAX_VALUE));
+	}
+
+	@Test
+	public void testLzf() {
+		byte[] data = json(10000);
+		byte[] compressed = ZMQCompression.compress(ZMQCompression.LZF, data, 0, data.length);
+		Assert.assertTrue(compressed.length < data.length / 2);
+		Assert.assertEquals('Z', compressed[0]);
+		Assert.assertEquals('V', compressed[1]);
+
+		assertRoundTrip(ZMQCompression.LZF, data);
+		assertRoundTrip(ZMQCompression.LZF, new byte[0]);
+		assertRoundTrip(ZMQCompression.LZF, "ab".getBytes());
+
+		// Several chunks, incompressible data
+		assertRoundTrip(ZMQCompression.LZF, json(300000));
+		assertRoundTrip(ZMQCompression.LZF, random(200000));
+
+		byte[] zeros = new byte[100000];
+		assertRoundTrip(ZMQCompression.LZF, zeros);
+	}
+
+	@Test
+	public void testLzfCodecOfElasticsearch() throws Exception {
+		for (byte[] data : new byte[][] { json(10000), json(300000), random(200000) }) {
+			// Contents compressed by the clients with the codec of ES
+			byte[] compressed = LZFEncoder.encode(data, 0, data.length);
+			Assert.assertArrayEquals(data, ZMQCompression.decompress(ZMQCompression.LZF, compressed, 0, compressed.length, Integer.MAX_VALUE));
+
+			// Replies decompressed by the clients with the codec of ES
+			compressed = ZMQCompression.compress(ZMQCompression.LZF, data, 0, data.length);
+			Assert.assertArrayEquals(data, LZFDecoder.decode(compressed, 0, compressed.length));
+		}
+	}
+
+	@Test
+	public void testDeflate() {
+		byte[] data = json(10000);
+		byte[] compressed = ZMQCompression.compress(ZMQCompression.DEFLATE, data, 0, data.length);
+		Assert.assertTrue(compressed.length < data.length / 2);
+
+		assertRoundTrip(ZMQCompression.DEFLATE, data);
+		assertRoundTrip(ZMQCompression.DEFLATE, new byte[0]);
+		assertRoundTrip(ZMQCompression.DEFLATE, random(200000));
+	}
+
+	@Test
+	public void testSlice() {
+		byte[] data = json(5000);
+		byte[] compressed = ZMQCompression.compress(ZMQCompression.LZF, data, 100, 1000);
+		Assert.assertArrayEquals(Arrays.copyOfRange(data, 100, 1100), ZMQCompression.decompress(ZMQCompression.LZF, compressed, 0, compressed.length, Integer.MAX_VALUE));
+	}
+
+	@Test
+	public void testCorrupted() {
+		byte[] data = json(10000);
+		byte[] compressed = ZMQCompression.compress(ZMQCompression.LZF, data, 0, data.length);
+		try {
+			ZMQCompression.decompress(ZMQCompression.LZF, compressed, 0, compressed.length - 10, Integer.MAX_VALUE);
+			Assert.fail("Truncated content");
+		} catch (ZMQTransportException e) {
+			// expected
+		}
+		try {
+			ZMQCompression.decompress(ZMQCompression.DEFLATE, data, 0, data.length, Integer.MAX_VALUE);
+			Assert.fail("Not deflated content");
+		} catch (ZMQTransportException e) {
+			// expected
+		}
+		try {
+			ZMQCompression.decompress("gzip", data, 0, data.length, Integer.MAX_VALUE);
+			Assert.fail("Unsupported encoding");
+		} catch (ZMQTransportException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testMaxLength() {
+		byte[] zeros = new byte[1000000];
+		for (String encoding : new String[] { ZMQCompression.LZF, ZMQCompression.DEFLATE }) {
+			byte[] compressed = ZMQCompression.compress(encoding, zeros, 0, zeros.length);
+			Assert.assertEquals(zeros.length, ZMQCompression.decompress(encoding, compressed, 0, compressed.length, zeros.length).length);
+			try {
+				ZMQCompression.decompress(encoding, compressed, 0, compressed.length, zeros.length - 1);
+				Assert.fail("Content larger than the maximum length");
+			} catch (ZMQContentTooLargeException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testAccepted() {
+		Assert.assertEquals("lzf", ZMQCompression.accepted("LZF, deflate"));
+		Assert.assertEquals("deflate", ZMQCompression.accepted("gzip;q=1.0, deflate;q=0.5"));
+		Assert.assertNull(ZMQCompression.accepted("gzip"));
+		Assert.assertNull(ZMQCompression.accepted(null));
+	}
+}
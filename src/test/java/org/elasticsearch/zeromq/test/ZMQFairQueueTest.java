@@ -0,0 +1,88 @@
+package org.elasticsearch.zeromq.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.elasticsearch.common.Unicode;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.zeromq.ZMQClientPolicy;
+import org.elasticsearch.zeromq.ZMQFairQueue;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ZMQFairQueueTest {
+
+	private final Settings settings = ImmutableSettings.settingsBuilder()
+			.put("zeromq.clients.batch.weight", 2)
+			.put("zeromq.clients.limited.rate", 1)
+			.build();
+
+	private final ZMQClientPolicy policy = new ZMQClientPolicy(Loggers.getLogger(ZMQFairQueueTest.class), settings);
+
+	@Test
+	public void testRoundRobin() {
+		ZMQFairQueue queue = new ZMQFairQueue(policy);
+		for (int i = 0; i < 4; i++) {
+			add(queue, "noisy", i);
+		}
+		add(queue, "interactive", 0);
+		add(queue, "interactive", 1);
+		Assert.assertEquals(6, queue.size());
+		Assert.assertEquals(2, queue.clients());
+
+		Assert.assertEquals("noisy-0", poll(queue));
+		Assert.assertEquals("interactive-0", poll(queue));
+		Assert.assertEquals("noisy-1", poll(queue));
+		Assert.assertEquals("interactive-1", poll(queue));
+		Assert.assertEquals("noisy-2", poll(queue));
+		Assert.assertEquals("noisy-3", poll(queue));
+		Assert.assertTrue(queue.isEmpty());
+		Assert.assertNull(queue.poll());
+	}
+
+	@Test
+	public void testWeight() {
+		ZMQFairQueue queue = new ZMQFairQueue(policy);
+		for (int i = 0; i < 4; i++) {
+			add(queue, "batch", i);
+		}
+		add(queue, "other", 0);
+		add(queue, "other", 1);
+
+		Assert.assertEquals("batch-0", poll(queue));
+		Assert.assertEquals("batch-1", poll(queue));
+		Assert.assertEquals("other-0", poll(queue));
+		Assert.assertEquals("batch-2", poll(queue));
+		Assert.assertEquals("batch-3", poll(queue));
+		Assert.assertEquals("other-1", poll(queue));
+	}
+
+	@Test
+	public void testRateLimit() {
+		byte[] limited = Unicode.fromStringAsBytes("limited");
+		byte[] other = Unicode.fromStringAsBytes("other");
+		long now = System.nanoTime();
+
+		Assert.assertTrue(policy.admit(limited, now));
+		Assert.assertFalse(policy.admit(limited, now));
+		Assert.assertTrue(policy.admit(other, now));
+		Assert.assertTrue(policy.admit(other, now));
+
+		// One token per second
+		Assert.assertTrue(policy.admit(limited, now + 1000000000L));
+		Assert.assertFalse(policy.admit(limited, now + 1000000000L));
+	}
+
+	private static void add(ZMQFairQueue queue, String client, int i) {
+		List<byte[]> message = new ArrayList<byte[]>();
+		message.add(Unicode.fromStringAsBytes(client));
+		message.add(Unicode.fromStringAsBytes(client + "-" + i));
+		queue.add(message.get(0), message);
+	}
+
+	private static String poll(ZMQFairQueue queue) {
+		return Unicode.fromBytes(queue.poll().get(1));
+	}
+}
@@ -0,0 +1,75 @@
+package org.elasticsearch.zeromq.test;
+
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.zeromq.ZMQ;
+
+public class ZMQGetBatchingTest extends AbstractZMQTransportTest {
+
+	private static final Pattern GET_BATCHING = Pattern
+			.compile("\"get_batching\":\\{\"batches\":(\\d+),\"batched\":(\\d+),\"fallbacks\":(\\d+)\\}");
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		// Get batching is only enabled for this node, which binds its own ports
+		startNode("tcp://localhost:9802", ImmutableSettings.settingsBuilder()
+				.put("zeromq.router.bind", "tcp://*:9802")
+				.put("zeromq.workers.bind", "inproc://es_zeromq_batch_workers")
+				.put("zeromq.ingest.bind", "tcp://*:9803")
+				.put("zeromq.get_batch.enabled", true)
+				.build());
+	}
+
+	@Test
+	public void testBatchedGets() throws IOException{
+		sendAndReceive("PUT", "/batched/doc/1", "{\"title\":\"first\"}");
+		sendAndReceive("PUT", "/batched/doc/2", "{\"title\":\"second\"}");
+		sendAndReceive("POST", "/batched/_refresh", null);
+
+		ZMQ.Socket socket = context.socket(ZMQ.DEALER);
+		socket.connect(address);
+
+		// Gets are batched into multi gets, missing documents must still be
+		// replied with a 404
+		int count = 30;
+		try {
+			for (int i = 0; i < count; i++) {
+				socket.send(String.valueOf(i).getBytes("UTF-8"), ZMQ.SNDMORE);
+				socket.send(("GET|/batched/doc/" + ((i % 3 == 0) ? "missing" : String.valueOf(i % 2 + 1)) + "|").getBytes("UTF-8"), 0);
+			}
+
+			for (int i = 0; i < count; i++) {
+				int id = Integer.parseInt(new String(socket.recv(0), "UTF-8"));
+				String response = new String(socket.recv(0), "UTF-8");
+
+				if (id % 3 == 0) {
+					Assert.assertTrue(response, response.startsWith("404|NOT_FOUND|"));
+					Assert.assertTrue(response, response.contains("\"_id\":\"missing\""));
+				} else {
+					Assert.assertTrue(response, response.startsWith("200|OK|{"));
+					Assert.assertTrue(response, response.contains("\"_id\":\"" + (id % 2 + 1) + "\""));
+					Assert.assertTrue(response, response.endsWith("}"));
+				}
+			}
+		} finally {
+			socket.close();
+		}
+
+		// At least one multi get carried several gets, and the missing
+		// documents were not dispatched again one by one
+		String stats = sendAndReceive("GET", "/_zeromq/stats", null);
+		Matcher matcher = GET_BATCHING.matcher(stats);
+		Assert.assertTrue(stats, matcher.find());
+		long batches = Long.parseLong(matcher.group(1));
+		long batched = Long.parseLong(matcher.group(2));
+		Assert.assertTrue(stats, batches > 0);
+		Assert.assertTrue(stats, batched > batches);
+		Assert.assertEquals(stats, 0, Long.parseLong(matcher.group(3)));
+	}
+}
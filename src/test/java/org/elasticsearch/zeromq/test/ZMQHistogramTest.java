@@ -0,0 +1,44 @@
+package org.elasticsearch.zeromq.test;
+
+import org.elasticsearch.zeromq.ZMQHistogram;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ZMQHistogramTest {
+
+	@Test
+	public void testEmpty() {
+		ZMQHistogram histogram = new ZMQHistogram();
+		Assert.assertEquals(0, histogram.count());
+		Assert.assertEquals(0, histogram.percentile(99));
+	}
+
+	@Test
+	public void testPercentiles() {
+		ZMQHistogram histogram = new ZMQHistogram();
+		for (int i = 0; i < 90; i++) {
+			histogram.record(100);
+		}
+		for (int i = 0; i < 10; i++) {
+			histogram.record(5000);
+		}
+		Assert.assertEquals(100, histogram.count());
+		Assert.assertEquals(590.0, histogram.mean(), 0.001);
+
+		// Upper bounds of the power of two buckets
+		Assert.assertEquals(127, histogram.percentile(50));
+		Assert.assertEquals(127, histogram.percentile(90));
+		Assert.assertEquals(8191, histogram.percentile(99));
+	}
+
+	@Test
+	public void testBounds() {
+		ZMQHistogram histogram = new ZMQHistogram();
+		histogram.record(0);
+		histogram.record(-1);
+		Assert.assertEquals(0, histogram.percentile(100));
+
+		histogram.record(Long.MAX_VALUE);
+		Assert.assertEquals(Long.MAX_VALUE, histogram.percentile(100));
+	}
+}
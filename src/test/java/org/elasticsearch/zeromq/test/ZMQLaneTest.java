@@ -0,0 +1,56 @@
+package org.elasticsearch.zeromq.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.elasticsearch.zeromq.ZMQLane;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ZMQLaneTest {
+
+	@Test
+	public void testClassify() {
+		Assert.assertEquals(ZMQLane.SEARCH, ZMQLane.classify("GET", "/twitter/_search?q=user:kimchy"));
+		Assert.assertEquals(ZMQLane.SEARCH, ZMQLane.classify("POST", "/_msearch"));
+		Assert.assertEquals(ZMQLane.SEARCH, ZMQLane.classify("GET", "/twitter/tweet/_count"));
+		Assert.assertEquals(ZMQLane.INDEX, ZMQLane.classify("POST", "/_bulk"));
+		Assert.assertEquals(ZMQLane.INDEX, ZMQLane.classify("PUT", "/twitter/tweet/1"));
+		Assert.assertEquals(ZMQLane.INDEX, ZMQLane.classify("POST", "/twitter/tweet"));
+		Assert.assertEquals(ZMQLane.INDEX, ZMQLane.classify("DELETE", "/twitter/tweet/1"));
+		Assert.assertEquals(ZMQLane.INDEX, ZMQLane.classify("POST", "/twitter/tweet/1/_update"));
+		Assert.assertEquals(ZMQLane.GET, ZMQLane.classify("GET", "/twitter/tweet/1?fields=user"));
+		Assert.assertEquals(ZMQLane.GET, ZMQLane.classify("GET", "/_mget"));
+		Assert.assertEquals(ZMQLane.ADMIN, ZMQLane.classify("GET", "/_cluster/health"));
+		Assert.assertEquals(ZMQLane.ADMIN, ZMQLane.classify("GET", "/"));
+		Assert.assertEquals(ZMQLane.ADMIN, ZMQLane.classify("POST", "/twitter/_refresh"));
+		Assert.assertEquals(ZMQLane.ADMIN, ZMQLane.classify("GET", "/twitter/tweet/_mapping"));
+		Assert.assertEquals(ZMQLane.ADMIN, ZMQLane.classify("PUT", "/twitter/tweet/_mapping"));
+		Assert.assertEquals(ZMQLane.ADMIN, ZMQLane.classify("DELETE", "/twitter/tweet/_mapping"));
+		Assert.assertEquals(ZMQLane.DEFAULT, ZMQLane.classify("PUT", "/twitter"));
+	}
+
+	@Test
+	public void testClassifyMethodCase() {
+		Assert.assertEquals(ZMQLane.GET, ZMQLane.classify("get", "/twitter/tweet/1"));
+		Assert.assertEquals(ZMQLane.GET, ZMQLane.classify("Head", "/twitter/tweet/1"));
+		Assert.assertEquals(ZMQLane.INDEX, ZMQLane.classify("put", "/twitter/tweet/1"));
+		Assert.assertEquals(ZMQLane.INDEX, ZMQLane.classify("delete", "/twitter/tweet/1"));
+	}
+
+	@Test
+	public void testClassifyMessage() throws Exception {
+		List<byte[]> message = new ArrayList<byte[]>();
+		message.add("client".getBytes("UTF-8"));
+		message.add("GET|/twitter/tweet/1|".getBytes("UTF-8"));
+		Assert.assertEquals(ZMQLane.GET, ZMQLane.classify(message));
+
+		message = new ArrayList<byte[]>();
+		message.add("client".getBytes("UTF-8"));
+		message.add(new byte[0]);
+		message.add("POST".getBytes("UTF-8"));
+		message.add("/twitter/_search".getBytes("UTF-8"));
+		message.add("{}".getBytes("UTF-8"));
+		Assert.assertEquals(ZMQLane.SEARCH, ZMQLane.classify(message));
+	}
+}
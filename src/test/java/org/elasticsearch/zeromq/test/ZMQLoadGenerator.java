@@ -0,0 +1,582 @@
+/*
+ * Licensed to Elastic Search and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Elastic Search licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.zeromq.test;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.zeromq.ZMQProtocol;
+import org.elasticsearch.zeromq.ZMQSocket;
+import org.zeromq.ZMQ;
+
+/**
+ * Load generator for the ØMQ transport.
+ * <p>
+ * Requests are sent by several DEALER connections, each one in its own thread,
+ * either in open loop (fixed arrival rate, <code>-r</code>) or in closed loop
+ * (a fixed number of requests in flight per connection, <code>-n</code>). Each
+ * request is prefixed by a correlation frame holding its send time, echoed back
+ * by the server with the reply.
+ * <p>
+ * Latencies are corrected for coordinated omission: in open loop, they are
+ * measured from the time the request should have been sent, not from the time
+ * it was sent. In closed loop, the missing samples are added like HdrHistogram
+ * does when an expected interval between requests is given (<code>-i</code>).
+ * <p>
+ * The requests are taken at random from a mix file (<code>-f</code>), one
+ * <code>METHOD URI [BODY]</code> request per line (lines starting with # are
+ * ignored, a line can be repeated to give it more weight), or given on the
+ * command line.
+ *
+ * @author tlrx
+ */
+public class ZMQLoadGenerator {
+
+	private static final String USAGE = "Usage: ZMQLoadGenerator [-c connections] [-r rate | -n in flight requests per connection] [-i expected interval (micros)]\n"
+			+ "                        [-d duration (s)] [-w warmup (s)] [-p protocol (1|2)] [-o output prefix]\n"
+			+ "                        <address> (-f <mix file> | <method> <url> [<json>])";
+
+	/**
+	 * Percentiles of the summary
+	 */
+	private static final double[] PERCENTILES = { 50, 75, 90, 99, 99.9, 99.99, 100 };
+
+	/**
+	 * Time to wait for the replies of the last requests
+	 */
+	private static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+	int connections = 1;
+
+	/**
+	 * Requests per second for all the connections, 0 for closed loop
+	 */
+	double rate = 0;
+
+	int inFlight = 1;
+
+	long expectedInterval = 0;
+
+	long duration = TimeUnit.SECONDS.toNanos(30);
+
+	long warmup = TimeUnit.SECONDS.toNanos(5);
+
+	int protocol = ZMQProtocol.V1;
+
+	String output;
+
+	String address;
+
+	final List<Request> mix = new ArrayList<Request>();
+
+	public static void main(String[] args) throws Exception {
+		ZMQLoadGenerator generator = new ZMQLoadGenerator();
+		try {
+			generator.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			return;
+		}
+		generator.run();
+	}
+
+	void parse(String[] args) throws IOException {
+		int i = 0;
+		while ((i < args.length) && args[i].startsWith("-")) {
+			String option = args[i++];
+			if (i == args.length) {
+				throw new IllegalArgumentException("Missing value for option " + option);
+			}
+			String value = args[i++];
+
+			if ("-c".equals(option)) {
+				connections = Integer.parseInt(value);
+			} else if ("-r".equals(option)) {
+				rate = Double.parseDouble(value);
+			} else if ("-n".equals(option)) {
+				inFlight = Integer.parseInt(value);
+			} else if ("-i".equals(option)) {
+				expectedInterval = TimeUnit.MICROSECONDS.toNanos(Long.parseLong(value));
+			} else if ("-d".equals(option)) {
+				duration = TimeUnit.SECONDS.toNanos(Long.parseLong(value));
+			} else if ("-w".equals(option)) {
+				warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(value));
+			} else if ("-p".equals(option)) {
+				protocol = Integer.parseInt(value);
+			} else if ("-o".equals(option)) {
+				output = value;
+			} else if ("-f".equals(option)) {
+				readMix(value);
+			} else {
+				throw new IllegalArgumentException("Unknown option " + option);
+			}
+		}
+
+		if (i == args.length) {
+			throw new IllegalArgumentException("Missing address");
+		}
+		address = args[i++];
+
+		if (i + 1 < args.length) {
+			mix.add(new Request(args[i], args[i + 1], (i + 2 < args.length) ? args[i + 2] : null));
+		}
+		if (mix.isEmpty()) {
+			throw new IllegalArgumentException("No request to send");
+		}
+		if ((connections < 1) || (inFlight < 1) || (rate < 0) || (warmup >= duration)) {
+			throw new IllegalArgumentException("Invalid options");
+		}
+	}
+
+	private void readMix(String file) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if ((line.length() == 0) || line.startsWith("#")) {
+					continue;
+				}
+				String[] parts = line.split("\\s+", 3);
+				if (parts.length < 2) {
+					throw new IllegalArgumentException("Invalid request in mix file: " + line);
+				}
+				mix.add(new Request(parts[0], parts[1], (parts.length > 2) ? parts[2] : null));
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	void run() throws Exception {
+		ZMQ.Context context = ZMQ.context(1);
+
+		// Gives some time to the connections before the first request
+		long start = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+
+		Connection[] workers = new Connection[connections];
+		Thread[] threads = new Thread[connections];
+		for (int i = 0; i < connections; i++) {
+			workers[i] = new Connection(context, i, start);
+			threads[i] = new Thread(workers[i], "zeromq_load_" + i);
+			threads[i].start();
+		}
+
+		Recorder total = new Recorder();
+		for (int i = 0; i < connections; i++) {
+			threads[i].join();
+			total.add(workers[i].recorder);
+		}
+		context.term();
+
+		report(total);
+	}
+
+	private void report(Recorder recorder) throws IOException {
+		long[] latencies = recorder.sorted();
+		double seconds = (double) (duration - warmup) / TimeUnit.SECONDS.toNanos(1);
+
+		System.out.printf(Locale.ENGLISH, "%s loop, %d connection(s), %.0fs (%.0fs of warmup)%n", (rate > 0) ? "Open" : "Closed", connections,
+				(double) duration / TimeUnit.SECONDS.toNanos(1), (double) warmup / TimeUnit.SECONDS.toNanos(1));
+		System.out.printf(Locale.ENGLISH, "Requests: %d sent, %d replied, %d lost, %d error(s)%n", recorder.sent, recorder.replied, recorder.sent
+				- recorder.replied, recorder.errors);
+		System.out.printf(Locale.ENGLISH, "Throughput: %.1f requests/s%n", recorder.replied / seconds);
+		for (int status = 0; status < recorder.statuses.length; status++) {
+			if (recorder.statuses[status] > 0) {
+				System.out.printf(Locale.ENGLISH, "Status %d: %d%n", status, recorder.statuses[status]);
+			}
+		}
+		System.out.println("Latency (micros):");
+		for (double percentile : PERCENTILES) {
+			System.out.printf(Locale.ENGLISH, "  %7.3f%%: %d%n", percentile, micros(percentile(latencies, percentile)));
+		}
+		if (recorder.corrected > 0) {
+			System.out.printf(Locale.ENGLISH, "  (%d samples added to correct coordinated omission)%n", recorder.corrected);
+		}
+
+		if (output != null) {
+			writeCsv(latencies, output + ".csv");
+			writeHgrm(latencies, output + ".hgrm");
+			System.out.printf("Latency distribution written in %s.csv and %s.hgrm%n", output, output);
+		}
+	}
+
+	/**
+	 * Writes the percentiles of the latencies (micros) in CSV
+	 */
+	private void writeCsv(long[] latencies, String file) throws IOException {
+		PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try {
+			writer.println("percentile,latency_micros");
+			for (double percentile : PERCENTILES) {
+				writer.printf(Locale.ENGLISH, "%.3f,%d%n", percentile, micros(percentile(latencies, percentile)));
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Writes the percentile distribution of the latencies (millis) in the
+	 * text format of HdrHistogram, which can be plotted by its tools
+	 */
+	private void writeHgrm(long[] latencies, String file) throws IOException {
+		PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try {
+			writer.printf("%12s %14s %10s %14s%n%n", "Value", "Percentile", "TotalCount", "1/(1-Percentile)");
+
+			int ticksPerHalfDistance = 5;
+			double percentile = 0;
+			while (percentile < 100) {
+				writer.printf(Locale.ENGLISH, "%12.3f %2.12f %10d %14.2f%n", millis(percentile(latencies, percentile)), percentile / 100,
+						count(latencies.length, percentile), 1 / (1 - (percentile / 100)));
+
+				long halfDistance = (long) Math.pow(2, (long) (Math.log(100 / (100 - percentile)) / Math.log(2)) + 1);
+				percentile += 100.0 / (halfDistance * ticksPerHalfDistance);
+
+				if (count(latencies.length, percentile) >= latencies.length) {
+					break;
+				}
+			}
+			writer.printf(Locale.ENGLISH, "%12.3f %2.12f %10d%n", millis(percentile(latencies, 100)), 1.0, latencies.length);
+
+			double mean = 0;
+			for (long latency : latencies) {
+				mean += latency;
+			}
+			mean = (latencies.length > 0) ? mean / latencies.length : 0;
+			double variance = 0;
+			for (long latency : latencies) {
+				variance += (latency - mean) * (latency - mean);
+			}
+			double deviation = (latencies.length > 0) ? Math.sqrt(variance / latencies.length) : 0;
+
+			writer.printf(Locale.ENGLISH, "#[Mean    = %12.3f, StdDeviation   = %12.3f]%n", mean / TimeUnit.MILLISECONDS.toNanos(1), deviation
+					/ TimeUnit.MILLISECONDS.toNanos(1));
+			writer.printf(Locale.ENGLISH, "#[Max     = %12.3f, Total count    = %12d]%n", millis(percentile(latencies, 100)), latencies.length);
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static int count(int length, double percentile) {
+		return (int) Math.ceil(length * percentile / 100);
+	}
+
+	/**
+	 * @return the latency at the given percentile of the sorted latencies
+	 */
+	static long percentile(long[] sorted, double percentile) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int index = count(sorted.length, percentile) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+	}
+
+	private static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+
+	private static double millis(long nanos) {
+		return (double) nanos / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	/**
+	 * A request of the mix, with its frames built once
+	 */
+	static class Request {
+
+		final byte[] payload;
+
+		final byte[][] frames;
+
+		Request(String method, String uri, String json) throws IOException {
+			String body = (json != null) ? json : "";
+			this.payload = (method + ZMQSocket.SEPARATOR + uri + ZMQSocket.SEPARATOR + body).getBytes("UTF-8");
+			this.frames = new byte[][] { method.getBytes("UTF-8"), uri.getBytes("UTF-8"), body.getBytes("UTF-8") };
+		}
+	}
+
+	/**
+	 * Latencies (nanos) and counters of one connection
+	 */
+	static class Recorder {
+
+		long[] latencies = new long[1024];
+
+		int size;
+
+		long sent;
+
+		long replied;
+
+		long errors;
+
+		long corrected;
+
+		final long[] statuses = new long[600];
+
+		void record(long latency) {
+			if (size == latencies.length) {
+				latencies = Arrays.copyOf(latencies, size * 2);
+			}
+			latencies[size++] = latency;
+		}
+
+		/**
+		 * Records a latency and the samples missed while waiting for it, when
+		 * requests were expected every interval
+		 */
+		void record(long latency, long interval) {
+			record(latency);
+			if (interval <= 0) {
+				return;
+			}
+			for (long missing = latency - interval; missing >= interval; missing -= interval) {
+				record(missing);
+				corrected++;
+			}
+		}
+
+		void add(Recorder other) {
+			for (int i = 0; i < other.size; i++) {
+				record(other.latencies[i]);
+			}
+			sent += other.sent;
+			replied += other.replied;
+			errors += other.errors;
+			corrected += other.corrected;
+			for (int i = 0; i < statuses.length; i++) {
+				statuses[i] += other.statuses[i];
+			}
+		}
+
+		long[] sorted() {
+			long[] sorted = Arrays.copyOf(latencies, size);
+			Arrays.sort(sorted);
+			return sorted;
+		}
+	}
+
+	/**
+	 * A DEALER connection and the thread that sends its requests and
+	 * receives their replies
+	 */
+	class Connection implements Runnable {
+
+		private final ZMQ.Context context;
+
+		private final int id;
+
+		private final long start;
+
+		private final Random random;
+
+		final Recorder recorder = new Recorder();
+
+		private ZMQ.Socket socket;
+
+		private long outstanding;
+
+		Connection(ZMQ.Context context, int id, long start) {
+			this.context = context;
+			this.id = id;
+			this.start = start;
+			this.random = new Random(id);
+		}
+
+		@Override
+		public void run() {
+			socket = context.socket(ZMQ.DEALER);
+			socket.setLinger(0);
+			socket.connect(address);
+
+			ZMQ.Poller poller = context.poller(1);
+			poller.register(socket, ZMQ.Poller.POLLIN);
+
+			long end = start + duration;
+			try {
+				if (rate > 0) {
+					openLoop(poller, end);
+				} else {
+					closedLoop(poller, end);
+				}
+
+				// Waits for the last replies
+				long drain = System.nanoTime() + DRAIN_NANOS;
+				long now;
+				while ((outstanding > 0) && ((now = System.nanoTime()) < drain)) {
+					poller.poll(pollTimeout(drain - now));
+					receive(end, false);
+				}
+			} finally {
+				socket.close();
+			}
+		}
+
+		/**
+		 * Sends the requests at a fixed rate, whatever the replies
+		 */
+		private void openLoop(ZMQ.Poller poller, long end) {
+			long interval = (long) (TimeUnit.SECONDS.toNanos(1) * connections / rate);
+
+			// Spreads the connections over the interval
+			long next = start + (interval * id / connections);
+
+			long now;
+			while ((now = System.nanoTime()) < end) {
+				while ((next <= now) && (next < end)) {
+					// The latency is measured from the time the request should
+					// have been sent
+					send(next);
+					next += interval;
+				}
+				poller.poll(pollTimeout(Math.min(next, end) - now));
+				receive(end, false);
+			}
+		}
+
+		/**
+		 * Keeps a fixed number of requests in flight
+		 */
+		private void closedLoop(ZMQ.Poller poller, long end) {
+			long now;
+			while ((now = System.nanoTime()) < start) {
+				sleep(start - now);
+			}
+			for (int i = 0; i < inFlight; i++) {
+				send(System.nanoTime());
+			}
+			while ((now = System.nanoTime()) < end) {
+				poller.poll(pollTimeout(end - now));
+				receive(end, true);
+			}
+		}
+
+		private void send(long time) {
+			Request request = mix.get(random.nextInt(mix.size()));
+
+			byte[] correlation = new byte[8];
+			for (int i = 0; i < 8; i++) {
+				correlation[i] = (byte) (time >>> (56 - (8 * i)));
+			}
+			socket.send(correlation, ZMQ.SNDMORE);
+
+			if (protocol == ZMQProtocol.V2) {
+				socket.send(new byte[0], ZMQ.SNDMORE);
+				socket.send(request.frames[0], ZMQ.SNDMORE);
+				socket.send(request.frames[1], ZMQ.SNDMORE);
+				socket.send(request.frames[2], 0);
+			} else {
+				socket.send(request.payload, 0);
+			}
+			outstanding++;
+			if (time >= start + warmup) {
+				recorder.sent++;
+			}
+		}
+
+		/**
+		 * Receives all the available replies
+		 *
+		 * @param next
+		 *            true to send a new request for each reply (closed loop)
+		 */
+		private void receive(long end, boolean next) {
+			byte[] correlation;
+			while ((correlation = socket.recv(ZMQ.NOBLOCK)) != null) {
+				int status = 0;
+				while (socket.hasReceiveMore()) {
+					byte[] frame = socket.recv(0);
+					if ((status == 0) && (frame.length > 0)) {
+						status = status(frame);
+					}
+				}
+				long now = System.nanoTime();
+				outstanding--;
+
+				if (correlation.length != 8) {
+					continue;
+				}
+				long time = 0;
+				for (int i = 0; i < 8; i++) {
+					time = (time << 8) | (correlation[i] & 0xFF);
+				}
+				if (time >= start + warmup) {
+					recorder.replied++;
+					recorder.record(now - time, (rate > 0) ? 0 : expectedInterval);
+					if ((status > 0) && (status < recorder.statuses.length)) {
+						recorder.statuses[status]++;
+					}
+					if ((status < 200) || (status >= 300)) {
+						recorder.errors++;
+					}
+				}
+				if (next && (now < end)) {
+					send(now);
+				}
+			}
+		}
+
+		/**
+		 * @return the status code at the beginning of a status frame or of a
+		 *         protocol V1 payload, 0 if it is not found
+		 */
+		private int status(byte[] frame) {
+			int status = 0;
+			for (int i = 0; (i < frame.length) && (i < 3); i++) {
+				if ((frame[i] < '0') || (frame[i] > '9')) {
+					return 0;
+				}
+				status = (status * 10) + (frame[i] - '0');
+			}
+			return status;
+		}
+
+		/**
+		 * @return the poll timeout in the unit of the ØMQ version, at least 1
+		 */
+		private long pollTimeout(long nanos) {
+			long micros = Math.max(1, TimeUnit.NANOSECONDS.toMicros(nanos));
+			return (ZMQ.getMajorVersion() < 3) ? micros : Math.max(1, micros / 1000);
+		}
+
+		private void sleep(long nanos) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(nanos);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,289 @@
+/*
+ * Licensed to Elastic Search and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Elastic Search licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.zeromq.test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeBuilder;
+import org.elasticsearch.zeromq.ZMQSocket;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.zeromq.ZMQ;
+
+/**
+ * Performance regression gate, run by the <code>perf</code> Maven profile
+ * only (its name does not match the default tests).
+ * <p>
+ * A fixed workload (index, get, search and bulk requests) is sent to an
+ * embedded node through the transport, then the throughput and the 99th
+ * percentile latency of each phase are compared to the baseline file: the
+ * test fails if the throughput is lower or the latency higher than the
+ * baseline by more than the tolerance, or if a phase has no baseline. The test
+ * is skipped while the baseline file has no value at all.
+ * <p>
+ * System properties: <code>perf.baseline</code> (baseline file),
+ * <code>perf.tolerance</code> (0.2 by default, 20%), <code>perf.requests</code>
+ * and <code>perf.threads</code> (requests per phase, a tenth of them for the
+ * bulk phase, and client threads), and
+ * <code>perf.update</code> to write the results in the baseline file.
+ *
+ * @author tlrx
+ */
+public class ZMQPerformanceRegression {
+
+	private static final String ADDRESS = "tcp://localhost:9800";
+
+	private static final String INDEX = "/perf_regression/doc/";
+
+	private static final int BULK_SIZE = 100;
+
+	private static final ESLogger logger = Loggers.getLogger(ZMQPerformanceRegression.class);
+
+	private static Node node;
+
+	private static ZMQ.Context context;
+
+	private final int requests = Integer.getInteger("perf.requests", 5000);
+
+	private final int threads = Integer.getInteger("perf.threads", 4);
+
+	private final double tolerance = Double.parseDouble(System.getProperty("perf.tolerance", "0.2"));
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		node = NodeBuilder.nodeBuilder().settings(ImmutableSettings.settingsBuilder().put("es.config", "elasticsearch.yml")).node();
+		context = ZMQ.context(1);
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		if (node != null) {
+			node.close();
+		}
+		try {
+			context.term();
+		} catch (Exception e) {
+			// ignore
+		}
+	}
+
+	@Test
+	public void testRegression() throws Exception {
+		File file = new File(System.getProperty("perf.baseline", "src/test/resources/perf-baseline.properties"));
+		boolean update = Boolean.getBoolean("perf.update");
+
+		Properties baseline = new Properties();
+		if (file.exists()) {
+			InputStream in = new FileInputStream(file);
+			try {
+				baseline.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		if (!update && baseline.isEmpty()) {
+			// Nothing to compare to until a baseline is checked in
+			logger.warn("No baseline in {}, the performance gate is skipped: generate it with -Dperf.update=true", file);
+			Assume.assumeTrue(false);
+		}
+
+		Properties results = new Properties();
+
+		run("index", requests, results, new Workload() {
+			@Override
+			public String request(int id) {
+				return "PUT" + ZMQSocket.SEPARATOR + INDEX + id + ZMQSocket.SEPARATOR + document(id);
+			}
+		});
+
+		send("POST" + ZMQSocket.SEPARATOR + "/perf_regression/_refresh" + ZMQSocket.SEPARATOR);
+
+		run("get", requests, results, new Workload() {
+			@Override
+			public String request(int id) {
+				return "GET" + ZMQSocket.SEPARATOR + INDEX + id + ZMQSocket.SEPARATOR;
+			}
+		});
+
+		run("search", requests, results, new Workload() {
+			@Override
+			public String request(int id) {
+				return "GET" + ZMQSocket.SEPARATOR + INDEX + "_search?q=user:user" + (id % 10) + ZMQSocket.SEPARATOR;
+			}
+		});
+
+		run("bulk", requests / 10, results, new Workload() {
+			@Override
+			public String request(int id) {
+				StringBuilder sb = new StringBuilder("POST").append(ZMQSocket.SEPARATOR).append("/_bulk").append(ZMQSocket.SEPARATOR);
+				for (int i = 0; i < BULK_SIZE; i++) {
+					int doc = (id * BULK_SIZE) + i;
+					sb.append("{\"index\":{\"_index\":\"perf_regression\",\"_type\":\"bulk\",\"_id\":\"").append(doc).append("\"}}\n");
+					sb.append(document(doc)).append('\n');
+				}
+				return sb.toString();
+			}
+		});
+
+		if (update) {
+			OutputStream out = new FileOutputStream(file);
+			try {
+				results.store(out, "Baseline of ZMQPerformanceRegression (throughput in requests/s, p99 in micros)");
+			} finally {
+				out.close();
+			}
+			logger.info("Baseline written in {}", file);
+			return;
+		}
+
+		List<String> regressions = new ArrayList<String>();
+		List<String> missing = new ArrayList<String>();
+		for (String name : results.stringPropertyNames()) {
+			String expected = baseline.getProperty(name);
+			if (expected == null) {
+				logger.info("{}: {} (no baseline)", name, results.getProperty(name));
+				missing.add(name);
+				continue;
+			}
+			double value = Double.parseDouble(results.getProperty(name));
+			double reference = Double.parseDouble(expected);
+
+			// Higher is better for the throughput, lower for the latency
+			boolean regressed = name.endsWith(".throughput") ? (value < reference * (1 - tolerance)) : (value > reference * (1 + tolerance));
+			logger.info("{}: {} (baseline {}){}", name, results.getProperty(name), expected, regressed ? " REGRESSION" : "");
+			if (regressed) {
+				regressions.add(name);
+			}
+		}
+		Assert.assertTrue("No baseline in " + file + " for " + missing + ", generate it with -Dperf.update=true", missing.isEmpty());
+		Assert.assertTrue("Performance regression (tolerance " + tolerance + "): " + regressions, regressions.isEmpty());
+	}
+
+	/**
+	 * Sends the requests of a workload from several client threads (one
+	 * request in flight per thread) and records its throughput and its 99th
+	 * percentile latency. The first 10% of the requests are a warmup.
+	 */
+	private void run(String name, int count, Properties results, final Workload workload) throws Exception {
+		final int perThread = count / threads;
+		final int warmup = perThread / 10;
+
+		final ZMQLoadGenerator.Recorder[] recorders = new ZMQLoadGenerator.Recorder[threads];
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final long[] starts = new long[threads];
+		final long[] ends = new long[threads];
+
+		Thread[] clients = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			recorders[t] = new ZMQLoadGenerator.Recorder();
+			clients[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					ZMQ.Socket socket = context.socket(ZMQ.DEALER);
+					socket.setLinger(0);
+					socket.connect(ADDRESS);
+					try {
+						for (int i = 0; i < perThread; i++) {
+							if (i == warmup) {
+								starts[thread] = System.nanoTime();
+							}
+							byte[] request = workload.request((thread * perThread) + i).getBytes("UTF-8");
+
+							long start = System.nanoTime();
+							socket.send(request, 0);
+							byte[] reply = socket.recv(0);
+							long latency = System.nanoTime() - start;
+
+							if ((reply == null) || (reply.length == 0) || (reply[0] != '2')) {
+								throw new IllegalStateException("Request failed: " + ((reply != null) ? new String(reply, "UTF-8") : null));
+							}
+							if (i >= warmup) {
+								recorders[thread].record(latency);
+								recorders[thread].replied++;
+							}
+						}
+						ends[thread] = System.nanoTime();
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					} finally {
+						socket.close();
+					}
+				}
+			}, "zeromq_perf_" + name + "_" + t);
+			clients[t].start();
+		}
+
+		ZMQLoadGenerator.Recorder total = new ZMQLoadGenerator.Recorder();
+		long elapsed = 0;
+		for (int t = 0; t < threads; t++) {
+			clients[t].join();
+			total.add(recorders[t]);
+			elapsed = Math.max(elapsed, ends[t] - starts[t]);
+		}
+		if (failure.get() != null) {
+			throw new AssertionError("Workload " + name + " failed: " + failure.get());
+		}
+
+		double throughput = total.replied * (double) TimeUnit.SECONDS.toNanos(1) / Math.max(1, elapsed);
+		long p99 = TimeUnit.NANOSECONDS.toMicros(ZMQLoadGenerator.percentile(total.sorted(), 99));
+		results.setProperty(name + ".throughput", String.format(Locale.ENGLISH, "%.0f", throughput));
+		results.setProperty(name + ".p99", Long.toString(p99));
+	}
+
+	private void send(String request) throws IOException {
+		ZMQ.Socket socket = context.socket(ZMQ.DEALER);
+		socket.setLinger(0);
+		socket.connect(ADDRESS);
+		try {
+			socket.send(request.getBytes("UTF-8"), 0);
+			socket.recv(0);
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static String document(int id) {
+		return "{\"user\":\"user" + (id % 10) + "\",\"post_date\":\"2012-05-01T12:00:00\",\"message\":\"Performance regression document " + id + "\"}";
+	}
+
+	interface Workload {
+
+		String request(int id);
+	}
+}
@@ -0,0 +1,233 @@
+package org.elasticsearch.zeromq.test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestRequest.Method;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.rest.StringRestResponse;
+import org.elasticsearch.zeromq.ZMQProtocol;
+import org.elasticsearch.zeromq.ZMQResponseCache;
+import org.elasticsearch.zeromq.ZMQResponseListener;
+import org.elasticsearch.zeromq.ZMQRestImpl;
+import org.elasticsearch.zeromq.ZMQRestRequest;
+import org.elasticsearch.zeromq.ZMQRestResponse;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ZMQResponseCacheTest {
+
+	private static final byte[][] REPLY = new byte[][] { "200|OK|{\"hits\":{}}".getBytes() };
+
+	private static ZMQResponseCache cache(String size, String ttl) {
+		return new ZMQResponseCache(ImmutableSettings.settingsBuilder()
+				.put("zeromq.cache.enabled", true)
+				.put("zeromq.cache.size", size)
+				.put("zeromq.cache.ttl", ttl)
+				.build());
+	}
+
+	private static ZMQRestRequest request(Method method, String uri, String content) {
+		return new ZMQRestRequest(method, uri, (content != null) ? ByteBuffer.wrap(content.getBytes()) : null);
+	}
+
+	@Test
+	public void testDisabled() {
+		ZMQResponseCache cache = new ZMQResponseCache(ImmutableSettings.settingsBuilder().build());
+		Assert.assertNull(cache.key(request(Method.GET, "/twitter/_search", null)));
+	}
+
+	@Test
+	public void testCacheable() {
+		ZMQResponseCache cache = cache("1mb", "1m");
+		Assert.assertNotNull(cache.key(request(Method.GET, "/twitter/_search?q=user:kimchy", null)));
+		Assert.assertNotNull(cache.key(request(Method.POST, "/twitter/tweet/_search", "{}")));
+		Assert.assertNotNull(cache.key(request(Method.GET, "/twitter/tweet/1", null)));
+		Assert.assertNotNull(cache.key(request(Method.GET, "/_mget", "{}")));
+
+		Assert.assertNull(cache.key(request(Method.PUT, "/twitter/tweet/1", "{}")));
+		Assert.assertNull(cache.key(request(Method.GET, "/twitter/_search?scroll=1m", null)));
+		Assert.assertNull(cache.key(request(Method.GET, "/_all/_refresh", null)));
+		Assert.assertNull(cache.key(request(Method.GET, "/_zeromq/stats", null)));
+	}
+
+	@Test
+	public void testHit() {
+		ZMQResponseCache cache = cache("1mb", "1m");
+
+		ZMQResponseCache.Key key = cache.key(request(Method.POST, "/twitter/_search", "{\"query\":{}}"));
+		Assert.assertNull(cache.get(key));
+		cache.put(key, RestStatus.OK, REPLY);
+
+		Assert.assertSame(REPLY, cache.get(cache.key(request(Method.POST, "/twitter/_search", "{\"query\":{}}"))));
+		Assert.assertNull(cache.get(cache.key(request(Method.POST, "/twitter/_search", "{\"query\":{\"a\":1}}"))));
+		Assert.assertEquals(1, cache.hits());
+		Assert.assertEquals(2, cache.misses());
+
+		// Errors are not cached
+		key = cache.key(request(Method.GET, "/twitter/tweet/2", null));
+		cache.put(key, RestStatus.NOT_FOUND, REPLY);
+		Assert.assertNull(cache.get(key));
+	}
+
+	@Test
+	public void testContentSlice() throws Exception {
+		ZMQResponseCache cache = cache("1mb", "1m");
+
+		// The content of a V1 request is a slice of its frame, the cached key
+		// must not depend on the frame once the request is replied
+		byte[] payload = "POST|/twitter/_search|{\"query\":{}}".getBytes("UTF-8");
+		ZMQResponseCache.Key key = cache.key(new ZMQRestRequest(payload, null));
+		cache.put(key, RestStatus.OK, REPLY);
+		Arrays.fill(payload, (byte) 0);
+
+		ZMQRestRequest request = new ZMQRestRequest("POST|/twitter/_search|{\"query\":{}}".getBytes("UTF-8"), null);
+		Assert.assertSame(REPLY, cache.get(cache.key(request)));
+		request = new ZMQRestRequest("POST|/twitter/_search|{\"query\":{\"a\":1}}".getBytes("UTF-8"), null);
+		Assert.assertNull(cache.get(cache.key(request)));
+	}
+
+	@Test
+	public void testInvalidation() {
+		ZMQResponseCache cache = cache("1mb", "1m");
+
+		ZMQResponseCache.Key twitter = cache.key(request(Method.GET, "/twitter/_search", null));
+		ZMQResponseCache.Key books = cache.key(request(Method.GET, "/books,music/_search", null));
+		ZMQResponseCache.Key all = cache.key(request(Method.GET, "/_search", null));
+		cache.put(twitter, RestStatus.OK, REPLY);
+		cache.put(books, RestStatus.OK, REPLY);
+		cache.put(all, RestStatus.OK, REPLY);
+
+		cache.invalidate(request(Method.PUT, "/twitter/tweet/1", "{}"));
+		Assert.assertNull(cache.get(twitter));
+		Assert.assertNull(cache.get(all));
+		Assert.assertNotNull(cache.get(books));
+
+		// Bulk requests can write any index
+		cache.invalidate(request(Method.POST, "/_bulk", "{}"));
+		Assert.assertNull(cache.get(books));
+		Assert.assertEquals(2, cache.invalidations());
+	}
+
+	@Test
+	public void testWriteDuringDispatch() {
+		ZMQResponseCache cache = cache("1mb", "1m");
+
+		ZMQResponseCache.Key key = cache.key(request(Method.GET, "/twitter/_search", null));
+		cache.invalidate(request(Method.DELETE, "/twitter/tweet/1", null));
+		cache.put(key, RestStatus.OK, REPLY);
+		Assert.assertEquals(0, cache.entries());
+	}
+
+	@Test
+	public void testReadDuringWrite() {
+		Settings settings = ImmutableSettings.settingsBuilder().put("zeromq.cache.enabled", true).build();
+		PendingController controller = new PendingController(settings);
+		final ZMQRestImpl client = new ZMQRestImpl(settings, controller);
+
+		ZMQRestRequest write = request(Method.PUT, "/twitter/tweet/1", "{\"message\":\"new\"}");
+		client.dispatch(write, new CachingListener(client, null));
+
+		// Read received after the write is dispatched, but executed by ES
+		// before the write: its reply is the previous document
+		ZMQRestRequest read = request(Method.GET, "/twitter/tweet/1", null);
+		client.dispatch(read, new CachingListener(client, client.cache().key(read)));
+		controller.respond(1, "{\"message\":\"old\"}");
+
+		controller.respond(0, "{\"ok\":true}");
+		Assert.assertNull(client.cache().get(client.cache().key(request(Method.GET, "/twitter/tweet/1", null))));
+
+		// Reads received once the write is applied are cached
+		read = request(Method.GET, "/twitter/tweet/1", null);
+		client.dispatch(read, new CachingListener(client, client.cache().key(read)));
+		controller.respond(2, "{\"message\":\"new\"}");
+		Assert.assertNotNull(client.cache().get(client.cache().key(request(Method.GET, "/twitter/tweet/1", null))));
+	}
+
+	@Test
+	public void testExpiration() throws Exception {
+		ZMQResponseCache cache = cache("1mb", "1ms");
+
+		ZMQResponseCache.Key key = cache.key(request(Method.GET, "/twitter/_search", null));
+		cache.put(key, RestStatus.OK, REPLY);
+		Thread.sleep(10);
+		Assert.assertNull(cache.get(key));
+		Assert.assertEquals(0, cache.entries());
+	}
+
+	@Test
+	public void testEviction() {
+		ZMQResponseCache cache = cache("1kb", "1m");
+
+		byte[][] reply = new byte[][] { new byte[300] };
+		ZMQResponseCache.Key first = cache.key(request(Method.GET, "/twitter/tweet/1", null));
+		ZMQResponseCache.Key second = cache.key(request(Method.GET, "/twitter/tweet/2", null));
+		ZMQResponseCache.Key third = cache.key(request(Method.GET, "/twitter/tweet/3", null));
+		cache.put(first, RestStatus.OK, reply);
+		cache.put(second, RestStatus.OK, reply);
+
+		// The first entry is the most recently used
+		Assert.assertNotNull(cache.get(first));
+		cache.put(third, RestStatus.OK, reply);
+		cache.put(cache.key(request(Method.GET, "/twitter/tweet/4", null)), RestStatus.OK, reply);
+
+		Assert.assertTrue(cache.bytes() <= 1024);
+		Assert.assertNull(cache.get(second));
+		Assert.assertEquals(2, cache.evictions());
+	}
+
+	/**
+	 * Keeps the dispatched requests until the test sends their response
+	 */
+	private static class PendingController extends RestController {
+
+		private final List<RestChannel> channels = new ArrayList<RestChannel>();
+
+		PendingController(Settings settings) {
+			super(settings);
+		}
+
+		@Override
+		public void dispatchRequest(RestRequest request, RestChannel channel) {
+			channels.add(channel);
+		}
+
+		void respond(int request, String content) {
+			channels.get(request).sendResponse(new StringRestResponse(RestStatus.OK, content));
+		}
+	}
+
+	/**
+	 * Caches the replies like the workers do
+	 */
+	private static class CachingListener implements ZMQResponseListener {
+
+		private final ZMQRestImpl client;
+
+		private final ZMQResponseCache.Key key;
+
+		CachingListener(ZMQRestImpl client, ZMQResponseCache.Key key) {
+			this.client = client;
+			this.key = key;
+		}
+
+		@Override
+		public void onResponse(ZMQRestResponse response) {
+			if (key != null) {
+				client.cache().put(key, response.status(), response.frames(ZMQProtocol.V1));
+			}
+		}
+
+		@Override
+		public void onFailure(Throwable e) {
+			Assert.fail(e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package org.elasticsearch.zeromq.test;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.elasticsearch.rest.RestRequest.Method;
+import org.elasticsearch.zeromq.ZMQCompression;
+import org.elasticsearch.zeromq.ZMQProtocol;
+import org.elasticsearch.zeromq.ZMQRestRequest;
+import org.elasticsearch.zeromq.exception.NoURIFoundZMQException;
+import org.elasticsearch.zeromq.exception.UnsupportedMethodZMQException;
+import org.elasticsearch.zeromq.exception.ZMQTransportException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ZMQRestRequestTest {
+
+	private ZMQRestRequest parse(String message) throws UnsupportedEncodingException {
+		byte[] payload = message.getBytes("UTF-8");
+		List<byte[]> parts = new ArrayList<byte[]>();
+		parts.add(payload);
+		return new ZMQRestRequest(payload, parts);
+	}
+
+	@Test
+	public void testParse() throws Exception {
+		ZMQRestRequest request = parse("PUT|/books/book/1|{\"title\":\"Les Misérables\"}");
+
+		Assert.assertEquals(Method.PUT, request.method());
+		Assert.assertEquals("/books/book/1", request.uri());
+		Assert.assertEquals("/books/book/1", request.rawPath());
+		Assert.assertTrue(request.hasContent());
+		Assert.assertEquals("{\"title\":\"Les Misérables\"}", request.contentAsString());
+	}
+
+	@Test
+	public void testContentIsNotCopied() throws Exception {
+		byte[] payload = "POST|/_bulk|{}".getBytes("UTF-8");
+		List<byte[]> parts = new ArrayList<byte[]>();
+		parts.add(payload);
+
+		ZMQRestRequest request = new ZMQRestRequest(payload, parts);
+		Assert.assertSame(payload, request.contentByteArray());
+		Assert.assertEquals(12, request.contentByteArrayOffset());
+		Assert.assertEquals(2, request.contentLength());
+	}
+
+	@Test
+	public void testContentWithSeparator() throws Exception {
+		ZMQRestRequest request = parse("POST|/books/book|{\"title\":\"a|b\"}");
+		Assert.assertEquals("{\"title\":\"a|b\"}", request.contentAsString());
+	}
+
+	@Test
+	public void testNoContent() throws Exception {
+		ZMQRestRequest request = parse("GET|/_all/_search?q=user:kimchy&size=2");
+
+		Assert.assertEquals(Method.GET, request.method());
+		Assert.assertEquals("/_all/_search", request.rawPath());
+		Assert.assertFalse(request.hasContent());
+		Assert.assertEquals("user:kimchy", request.param("q"));
+		Assert.assertEquals("2", request.param("size"));
+		Assert.assertEquals("10", request.param("from", "10"));
+	}
+
+	@Test
+	public void testMultipart() throws Exception {
+		List<byte[]> content = new ArrayList<byte[]>();
+		content.add("POST".getBytes("UTF-8"));
+		content.add("/books/book?refresh=true".getBytes("UTF-8"));
+		content.add("Content-Type: application/json\nX-Custom:a|b".getBytes("UTF-8"));
+		content.add("{\"title\":\"Notre-Dame de Paris\"}".getBytes("UTF-8"));
+
+		ZMQRestRequest request = new ZMQRestRequest(content, content);
+
+		Assert.assertEquals(ZMQProtocol.V2, request.protocol());
+		Assert.assertEquals(Method.POST, request.method());
+		Assert.assertEquals("/books/book", request.rawPath());
+		Assert.assertEquals("true", request.param("refresh"));
+		Assert.assertEquals("application/json", request.header("Content-Type"));
+		Assert.assertEquals("a|b", request.header("x-custom"));
+		Assert.assertEquals("{\"title\":\"Notre-Dame de Paris\"}", request.contentAsString());
+	}
+
+	@Test
+	public void testCompressedContent() throws Exception {
+		byte[] json = "{\"title\":\"Notre-Dame de Paris\"}".getBytes("UTF-8");
+
+		List<byte[]> content = new ArrayList<byte[]>();
+		content.add("POST".getBytes("UTF-8"));
+		content.add("/books/book".getBytes("UTF-8"));
+		content.add("Content-Encoding: lzf".getBytes("UTF-8"));
+		content.add(ZMQCompression.compress(ZMQCompression.LZF, json, 0, json.length));
+
+		ZMQRestRequest request = new ZMQRestRequest(content, content);
+		Assert.assertEquals("{\"title\":\"Notre-Dame de Paris\"}", request.contentAsString());
+
+		content.set(2, "Content-Encoding: br".getBytes("UTF-8"));
+		try {
+			new ZMQRestRequest(content, content);
+			Assert.fail("Unsupported encoding");
+		} catch (ZMQTransportException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testAcceptedContentType() throws Exception {
+		List<byte[]> content = new ArrayList<byte[]>();
+		content.add("GET".getBytes("UTF-8"));
+		content.add("/books/_search".getBytes("UTF-8"));
+		content.add("Accept: text/html, application/smile;q=0.9".getBytes("UTF-8"));
+		content.add(new byte[0]);
+
+		ZMQRestRequest request = new ZMQRestRequest(content, content);
+		Assert.assertEquals("application/smile", request.header("Content-Type"));
+
+		content.set(2, "Accept: application/smile\nContent-Type: application/json".getBytes("UTF-8"));
+		request = new ZMQRestRequest(content, content);
+		Assert.assertEquals("application/json", request.header("Content-Type"));
+
+		content.set(2, "Accept: */*".getBytes("UTF-8"));
+		request = new ZMQRestRequest(content, content);
+		Assert.assertNull(request.header("Content-Type"));
+	}
+
+	@Test
+	public void testContentStart() throws Exception {
+		List<byte[]> parts = new ArrayList<byte[]>();
+		parts.add(new byte[] { 0, 1, 2 });
+		parts.add("GET|/".getBytes("UTF-8"));
+		Assert.assertEquals(1, ZMQProtocol.contentStart(parts));
+
+		parts.add(1, new byte[0]);
+		parts.add("/".getBytes("UTF-8"));
+		parts.add(new byte[0]);
+		Assert.assertEquals(2, ZMQProtocol.contentStart(parts));
+		Assert.assertEquals(ZMQProtocol.V2, ZMQProtocol.version(parts.size() - 2));
+	}
+
+	@Test
+	public void testReplyVersion() throws Exception {
+		List<byte[]> parts = new ArrayList<byte[]>();
+		parts.add(new byte[] { 0, 1, 2 });
+		parts.add("GET|/".getBytes("UTF-8"));
+		Assert.assertEquals(ZMQProtocol.V1, ZMQProtocol.replyVersion(parts, ZMQProtocol.contentStart(parts)));
+
+		// Malformed multipart message: 2 content frames after the delimiter
+		parts = new ArrayList<byte[]>();
+		parts.add(new byte[] { 0, 1, 2 });
+		parts.add(new byte[0]);
+		parts.add("GET".getBytes("UTF-8"));
+		parts.add("/".getBytes("UTF-8"));
+		Assert.assertEquals(-1, ZMQProtocol.version(parts.size() - ZMQProtocol.contentStart(parts)));
+		Assert.assertEquals(ZMQProtocol.V2, ZMQProtocol.replyVersion(parts, ZMQProtocol.contentStart(parts)));
+	}
+
+	@Test
+	public void testDeadline() throws Exception {
+		List<byte[]> parts = new ArrayList<byte[]>();
+		parts.add(new byte[] { 0, 1, 2 });
+		parts.add(new byte[0]);
+		parts.add("GET".getBytes("UTF-8"));
+		parts.add("/_search".getBytes("UTF-8"));
+		parts.add("X-Timeout: 200ms".getBytes("UTF-8"));
+		parts.add(new byte[0]);
+		Assert.assertEquals(1000 + 200000000L, ZMQProtocol.deadline(parts, 1000));
+
+		parts.set(4, "X-Timeout: 50".getBytes("UTF-8"));
+		Assert.assertEquals(1000 + 50000000L, ZMQProtocol.deadline(parts, 1000));
+
+		parts.set(4, "X-Timeout: soon".getBytes("UTF-8"));
+		Assert.assertEquals(0, ZMQProtocol.deadline(parts, 1000));
+
+		parts.set(4, ("X-Deadline: " + (System.currentTimeMillis() - 1000)).getBytes("UTF-8"));
+		Assert.assertTrue(ZMQProtocol.deadline(parts, 1000) < 1000);
+
+		parts.remove(4);
+		Assert.assertEquals(0, ZMQProtocol.deadline(parts, 1000));
+	}
+
+	@Test(expected = UnsupportedMethodZMQException.class)
+	public void testUnsupportedMethod() throws Exception {
+		parse("PATCH|/books/book/1|");
+	}
+
+	@Test(expected = NoURIFoundZMQException.class)
+	public void testNoURI() throws Exception {
+		parse("GET||");
+	}
+
+	@Test(expected = ZMQTransportException.class)
+	public void testInvalidFormat() throws Exception {
+		parse("GET");
+	}
+}
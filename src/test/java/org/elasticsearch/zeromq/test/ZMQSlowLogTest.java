@@ -0,0 +1,48 @@
+package org.elasticsearch.zeromq.test;
+
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.zeromq.ZMQSlowLog;
+import org.elasticsearch.zeromq.ZMQTrace;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ZMQSlowLogTest {
+
+	@Test
+	public void testDisabledByDefault() {
+		ZMQSlowLog slowLog = new ZMQSlowLog(ImmutableSettings.settingsBuilder().build());
+		for (int i = 0; i < 10; i++) {
+			Assert.assertNull(slowLog.sample(1, 2));
+		}
+	}
+
+	@Test
+	public void testSampleRate() {
+		ZMQSlowLog slowLog = new ZMQSlowLog(ImmutableSettings.settingsBuilder()
+				.put("zeromq.slowlog.threshold.warn", "1s")
+				.put("zeromq.slowlog.sample_rate", "0.25")
+				.build());
+
+		int sampled = 0;
+		for (int i = 0; i < 100; i++) {
+			if (slowLog.sample(1, 2) != null) {
+				sampled++;
+			}
+		}
+		Assert.assertEquals(25, sampled);
+	}
+
+	@Test
+	public void testPhases() throws Exception {
+		long received = System.nanoTime() - 1000000;
+		ZMQTrace trace = new ZMQTrace(received, received + 400000);
+		trace.mark(ZMQTrace.PARSED);
+		trace.mark(ZMQTrace.SENT);
+
+		Assert.assertEquals(400000, trace.duration(ZMQTrace.DEQUEUED));
+		Assert.assertTrue(trace.duration(ZMQTrace.PARSED) >= 600000);
+		Assert.assertEquals(-1, trace.duration(ZMQTrace.RESPONDED));
+		Assert.assertEquals(trace.time(ZMQTrace.SENT) - trace.time(ZMQTrace.PARSED), trace.duration(ZMQTrace.SENT));
+		Assert.assertEquals(trace.time(ZMQTrace.SENT) - received, trace.total());
+	}
+}
@@ -3,105 +3,27 @@ package org.elasticsearch.zeromq.test;
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.common.xcontent.XContentBuilder;
-import org.elasticsearch.node.Node;
-import org.elasticsearch.node.NodeBuilder;
-import org.elasticsearch.zeromq.ZMQSocket;
-import org.junit.AfterClass;
+import org.elasticsearch.zeromq.ZMQProtocol;
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.zeromq.ZMQ;
 
-public class ZMQTransportPluginTest {
-	
-	private static Node node = null;
-	
-	private static ZMQ.Context context = null;
-	
-	/*
-	 * ØMQ Socket binding adress, must be coherent with elasticsearch.yml config file 
-	 */
-	private static final String address = "tcp://localhost:9800";
+public class ZMQTransportPluginTest extends AbstractZMQTransportTest {
 	
 	@BeforeClass
 	public static void setUpBeforeClass() throws Exception {
-		// Instantiate an ES server
-		node = NodeBuilder.nodeBuilder()
-				.settings(
-						ImmutableSettings.settingsBuilder()
-						.put("es.config", "elasticsearch.yml")		
-						).node();
-		
-		// Instantiate a ZMQ context
-		context = ZMQ.context(1);
+		startNode("tcp://localhost:9800", ImmutableSettings.settingsBuilder().build());
 	}
 	
-	@AfterClass
-	public static void tearDownAfterClass() throws Exception {
-		if(node != null){
-			node.close();
-		}
-
-		try {
-			context.term();
-		} catch (Exception e2) {
-			// ignore
-		}
-	}
-
-	/**
-	 * Simple method to send & receive zeromq message
-	 * 
-	 * @param method
-	 * @param uri
-	 * @param json
-	 * @return
-	 */
-	private String sendAndReceive(String method, String uri, String json){
-
-		ZMQ.Socket socket = context.socket(ZMQ.DEALER);
-		socket.connect(address);
-
-		// Handshake
-		try {
-			Thread.sleep(100);
-		} catch (Exception e) {
-			Assert.fail("Handshake failed");
-		}
-
-		StringBuilder sb = new StringBuilder(method);
-		sb.append(ZMQSocket.SEPARATOR).append(uri).append(ZMQSocket.SEPARATOR);
-		
-		if(json != null){
-			sb.append(json);	
-		}
-
-		String result = null;
-		try {
-			socket.send(sb.toString().getBytes("UTF-8"), 0);
-
-			byte[] response = socket.recv(0);
-			result = new String(response, Charset.forName("UTF-8"));
-
-		} catch (UnsupportedEncodingException e) {
-			Assert.fail("Exception when sending/receiving message");
-		} finally {
-			try {
-				socket.close();
-			} catch (Exception e2) {
-				// ignore
-			}
-		}
-		return result;
-	}
-	
-	
 	@Test
 	public void testDeleteMissingIndex(){
 		String response = sendAndReceive("DELETE", "/test-index-missing/", null);
@@ -196,6 +118,104 @@ public class ZMQTransportPluginTest {
 		Assert.assertTrue(response.contains("\"hits\":{\"total\":2"));
 	}
 
+	@Test
+	public void testMultipart() throws IOException{
+		List<byte[]> reply = sendAndReceiveMultipart("GET", "/books/book/2", "Content-Type: application/json", null);
+		Assert.assertEquals(2, reply.size());
+		Assert.assertEquals(200, ZMQProtocol.decodeStatus(reply.get(0)));
+		Assert.assertTrue(new String(reply.get(1), "UTF-8").contains("Notre-Dame de Paris"));
+
+		reply = sendAndReceiveMultipart("GET", "/test-index-missing/_search?q=a|b", null, null);
+		Assert.assertEquals(404, ZMQProtocol.decodeStatus(reply.get(0)));
+	}
+
+	@Test
+	public void testMalformedMultipart() throws IOException{
+		ZMQ.Socket socket = context.socket(ZMQ.DEALER);
+		socket.connect(address);
+
+		// 2 content frames after the delimiter: a V2 error is replied
+		List<byte[]> reply = new ArrayList<byte[]>();
+		try {
+			socket.send(new byte[0], ZMQ.SNDMORE);
+			socket.send("GET".getBytes("UTF-8"), ZMQ.SNDMORE);
+			socket.send("/".getBytes("UTF-8"), 0);
+			do {
+				reply.add(socket.recv(0));
+			} while (socket.hasReceiveMore());
+		} finally {
+			socket.close();
+		}
+		Assert.assertEquals(3, reply.size());
+		Assert.assertEquals(0, reply.get(0).length);
+		Assert.assertEquals(400, ZMQProtocol.decodeStatus(reply.get(1)));
+	}
+
+	@Test
+	public void testSmile() throws IOException{
+		List<byte[]> reply = sendAndReceiveMultipart("GET", "/books/book/2", "Accept: application/smile", null);
+		Assert.assertEquals(3, reply.size());
+		Assert.assertEquals(200, ZMQProtocol.decodeStatus(reply.get(0)));
+		Assert.assertEquals("application/smile", ZMQProtocol.decodeHeaders(reply.get(1)).get("content-type"));
+
+		// SMILE header
+		Assert.assertEquals(':', reply.get(2)[0]);
+		Assert.assertEquals(')', reply.get(2)[1]);
+	}
+
+	@Test
+	public void testPipelining() throws IOException{
+		ZMQ.Socket socket = context.socket(ZMQ.DEALER);
+		socket.connect(address);
+
+		int count = 50;
+		Set<String> pending = new HashSet<String>();
+		try {
+			for (int i = 0; i < count; i++) {
+				String correlation = "request-" + i;
+				pending.add(correlation);
+
+				socket.send(correlation.getBytes("UTF-8"), ZMQ.SNDMORE);
+				socket.send(("GET|/books/book/" + (i % 2 + 1) + "|").getBytes("UTF-8"), 0);
+			}
+
+			for (int i = 0; i < count; i++) {
+				String correlation = new String(socket.recv(0), "UTF-8");
+				Assert.assertTrue("Reply should have one more frame", socket.hasReceiveMore());
+				String response = new String(socket.recv(0), "UTF-8");
+
+				Assert.assertTrue("Unexpected correlation " + correlation, pending.remove(correlation));
+				String id = correlation.substring("request-".length());
+				Assert.assertTrue(response.contains("\"_id\":\"" + (Integer.parseInt(id) % 2 + 1) + "\""));
+			}
+			Assert.assertTrue(pending.isEmpty());
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testIngest() throws Exception{
+		ZMQ.Socket socket = context.socket(ZMQ.PUSH);
+		socket.connect("tcp://localhost:9801");
+
+		try {
+			for (int i = 1; i <= 10; i++) {
+				socket.send(("PUT|/ingest/doc/" + i + "|{\n\"count\": " + i + "\n}").getBytes("UTF-8"), 0);
+			}
+			socket.send("DELETE|/ingest/doc/10|".getBytes("UTF-8"), 0);
+		} finally {
+			socket.close();
+		}
+
+		// Waits for the bulk request to be flushed
+		Thread.sleep(1000);
+		sendAndReceive("POST", "/ingest/_refresh", null);
+
+		String response = sendAndReceive("GET", "/ingest/doc/_count", null);
+		Assert.assertTrue(response, response.contains("\"count\":9"));
+	}
+
 	@Test
 	public void testGet() throws IOException{
 		String response = sendAndReceive("GET", "/books/book/2", null);